@@ -0,0 +1,91 @@
+package org.hapiserver;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * benchmarks of reading a CSV data response, comparing readLine and split,
+ * as the data checks used to, with CsvScanner, alone and with each record
+ * validated.  The response is synthetic and held in memory, so only the
+ * scanning is measured.
+ * @author jbf
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+public class CsvScanBenchmark {
+
+    @Param({ "4", "32" })
+    public int megabytes;
+
+    private byte[] data;
+    private JSONArray parameters;
+
+    @Setup
+    public void setup() throws JSONException {
+        StringBuilder b= new StringBuilder();
+        int i= 0;
+        while ( b.length() < megabytes * 1000000 ) {
+            int s= i % 86400;
+            b.append( String.format( "2017-03-01T%02d:%02d:%02d.000Z,%.3f,%.3f,%.3f,%.3f,%d\n", 
+                    s/3600, s/60%60, s%60, i*0.001, Math.sin(i), Math.cos(i), -1e31, i ) );
+            i++;
+        }
+        data= b.toString().getBytes( Charset.forName("UTF-8") );
+        parameters= new JSONArray( "[{name:Time,type:isotime,length:24},{name:x,type:double},"
+                + "{name:v,type:double,size:[3]},{name:n,type:integer}]" );
+    }
+
+    @Benchmark
+    public long readLineSplit() throws IOException {
+        long fields= 0;
+        try ( BufferedReader read= new BufferedReader( new InputStreamReader( new ByteArrayInputStream(data), "UTF-8" ) ) ) {
+            String line;
+            while ( ( line= read.readLine() )!=null ) {
+                fields+= line.split(",",-2).length;
+            }
+        }
+        return fields;
+    }
+
+    @Benchmark
+    public long csvScanner() throws IOException {
+        long fields= 0;
+        CsvScanner scanner= new CsvScanner( new ByteArrayInputStream(data) );
+        while ( scanner.next() ) {
+            fields+= scanner.getFieldCount();
+        }
+        return fields;
+    }
+
+    @Benchmark
+    public long csvScannerValidated() throws IOException, JSONException {
+        RecordValidator validator= new RecordValidator( parameters, "2017-03-01T00:00Z", "2017-03-02T00:00Z" );
+        CsvScanner scanner= new CsvScanner( new ByteArrayInputStream(data) );
+        while ( scanner.next() ) {
+            validator.validate( scanner );
+        }
+        return validator.getProblemCount();
+    }
+
+}
@@ -0,0 +1,54 @@
+package org.hapiserver;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * benchmark of Check.hapiURL, which builds the URL of each request.
+ * @author jbf
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+public class HapiURLBenchmark {
+
+    private URL hapi;
+    private Map<String,String> params;
+
+    @Setup
+    public void setup() throws MalformedURLException {
+        hapi= new URL("https://example.org/hapi");
+        params= new LinkedHashMap<>();
+        params.put( "id", "AC_H0_MFI" );
+        params.put( "time.min", "2017-03-01T00:00Z" );
+        params.put( "time.max", "2017-03-02T00:00Z" );
+        params.put( "parameters", "Time,Magnitude,BGSEc" );
+    }
+
+    @Benchmark
+    public URL catalog() {
+        return Check.hapiURL( hapi, "catalog", null );
+    }
+
+    @Benchmark
+    public URL data() {
+        return Check.hapiURL( hapi, "data", params );
+    }
+
+}
@@ -0,0 +1,56 @@
+package org.hapiserver;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * benchmark of HapiUtil.makeHtml, which converts the log of each check
+ * into the HTML of its page, on logs like those of a server with many
+ * datasets.
+ * @author jbf
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+public class MakeHtmlBenchmark {
+
+    /**
+     * the number of datasets in the log, each with four lines.
+     */
+    @Param({ "1000", "25000" })
+    public int datasets;
+
+    private String log;
+
+    @Setup
+    public void setup() {
+        StringBuilder b= new StringBuilder();
+        for ( int i=0; i<datasets; i++ ) {
+            b.append("using response already read from https://example.org/hapi/info?id=dataset").append(i).append("\n");
+            b.append("opening https://example.org/hapi/data?id=dataset").append(i)
+                    .append("&time.min=2017-03-01T00:00Z&time.max=2017-03-02T00:00Z&format=binary\n");
+            b.append("Records received: 8640\n");
+            b.append("8640 records, 518400 bytes in 0.21 seconds (41142 records/s, 2468571 bytes/s)\n");
+        }
+        log= b.toString();
+    }
+
+    @Benchmark
+    public String makeHtml() {
+        return HapiUtil.makeHtml( log );
+    }
+
+}
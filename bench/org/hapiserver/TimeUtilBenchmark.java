@@ -0,0 +1,71 @@
+package org.hapiserver;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * benchmarks of the time parsing and formatting in TimeUtil, which is done
+ * for each record when times are validated.
+ * @author jbf
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+public class TimeUtilBenchmark {
+
+    @Param({ "2017-08-14T12:34:56.789Z", "2017-226T12:34Z", "2017-08-14T12:34:56-05:00" })
+    public String time;
+
+    private final int[] result= new int[7];
+
+    private final int[] unnormalized= { 2017, 12, 31, 23, 59, 60, 1000000000 };
+    private final int[] components= new int[7];
+
+    private final int[] decomposed= { 2017, 8, 14, 12, 34, 56, 789000000 };
+    private final long epochNanos= TimeUtil.toEpochNanos( decomposed );
+
+    @Benchmark
+    public int parseISO8601Datum() {
+        return TimeUtil.parseISO8601Datum( time, result, 0 );
+    }
+
+    @Benchmark
+    public int[] parseISO8601Range() throws ParseException {
+        return TimeUtil.parseISO8601Range( "2017-08-14T00:00Z/2017-08-16T01:02:04.123Z" );
+    }
+
+    @Benchmark
+    public int[] normalizeTimeComponents() {
+        System.arraycopy( unnormalized, 0, components, 0, 7 );
+        return TimeUtil.normalizeTimeComponents( components );
+    }
+
+    @Benchmark
+    public String formatISO8601Datum() {
+        return TimeUtil.formatISO8601Datum( decomposed );
+    }
+
+    @Benchmark
+    public long toEpochNanos() {
+        return TimeUtil.toEpochNanos( decomposed );
+    }
+
+    @Benchmark
+    public int[] fromEpochNanos() {
+        return TimeUtil.fromEpochNanos( epochNanos, components );
+    }
+
+}
@@ -0,0 +1,138 @@
+package org.hapiserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * reads a HAPI format=binary data response, checking that it is made of
+ * whole records and that the times increase.  Each record has a fixed
+ * length worked out from the parameters of the info response: 8 bytes for
+ * each double, 4 bytes for each integer, and "length" bytes for each
+ * string and isotime, multiplied by the product of the size.  Records are
+ * read straight from a reusable ByteBuffer, and times are compared as
+ * bytes without decoding them.
+ * @author jbf
+ */
+public class BinaryRecordReader {
+
+    private final int recordLength;
+    private final int timeLength;
+    private final int fieldCount;
+
+    /**
+     * @param parameters the parameters in the response, from the info response, starting with time.
+     * @throws JSONException
+     * @throws IllegalArgumentException when the record length cannot be worked out.
+     */
+    public BinaryRecordReader( JSONArray parameters ) throws JSONException {
+        int len= 0;
+        int nf= 0;
+        for ( int i=0; i<parameters.length(); i++ ) {
+            JSONObject p= parameters.getJSONObject(i);
+            int n= HapiUtil.numberOfFields(p);
+            len+= byteLength(p) * n;
+            nf+= n;
+        }
+        this.recordLength= len;
+        this.timeLength= byteLength( parameters.getJSONObject(0) );
+        this.fieldCount= nf;
+        if ( len==0 ) throw new IllegalArgumentException("record length is zero");
+    }
+
+    /**
+     * return the number of bytes used by one element of the parameter.
+     * @param parameter the parameter from the info response.
+     * @return the number of bytes
+     * @throws JSONException
+     * @throws IllegalArgumentException for unknown types, or when a string has no length.
+     */
+    public static int byteLength( JSONObject parameter ) throws JSONException {
+        String type= parameter.getString("type");
+        switch (type) {
+            case "double":
+                return 8;
+            case "integer":
+                return 4;
+            case "string":
+            case "isotime":
+                if ( !parameter.has("length") ) {
+                    throw new IllegalArgumentException( "parameter "+parameter.getString("name")+" has no length" );
+                }
+                return parameter.getInt("length");
+            default:
+                throw new IllegalArgumentException( "unknown type: "+type );
+        }
+    }
+
+    /**
+     * return the length of each record in bytes.
+     * @return the length
+     */
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    /**
+     * read the response, counting each record.
+     * @param in the response, which is not closed.
+     * @param stats the statistics, which are updated as records are read.
+     * @param validator null, or the validator which checks the time of each
+     * record, in which case the order of the times is left to the validator.
+     * @return null, or a description of the first problem found.
+     * @throws IOException
+     */
+    public String read( InputStream in, RecordStatistics stats, RecordValidator validator ) throws IOException {
+        ByteBuffer buffer= ByteBuffer.allocate( Math.max( 1, 65536/recordLength ) * recordLength );
+        byte[] bytes= buffer.array();
+        byte[] lastTime= new byte[timeLength];
+        long total= 0;
+        long records= 0;
+        long outOfOrder= 0;
+        long firstOutOfOrder= -1;
+        int n;
+        while ( ( n= in.read( bytes, buffer.position(), buffer.remaining() ) )!=-1 ) {
+            buffer.position( buffer.position()+n );
+            total+= n;
+            buffer.flip();
+            while ( buffer.remaining()>=recordLength ) {
+                int offset= buffer.position();
+                if ( validator!=null ) {
+                    validator.validateTime( bytes, offset, offset+timeLength );
+                } else {
+                    if ( records>0 && compare( bytes, offset, lastTime )<0 ) {
+                        if ( outOfOrder==0 ) firstOutOfOrder= records;
+                        outOfOrder++;
+                    }
+                    System.arraycopy( bytes, offset, lastTime, 0, timeLength );
+                }
+                records++;
+                stats.record( fieldCount, recordLength );
+                buffer.position( offset+recordLength );
+            }
+            buffer.compact();
+        }
+        if ( buffer.position()>0 ) {
+            return "response length "+total+" is not a multiple of the record length "+recordLength;
+        } else if ( outOfOrder>0 ) {
+            return "time decreases at record "+(firstOutOfOrder+1)+" ("+outOfOrder+" records out of order)";
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * compare the time at the offset with the last time, as unsigned bytes.
+     */
+    private int compare( byte[] bytes, int offset, byte[] lastTime ) {
+        for ( int i=0; i<timeLength; i++ ) {
+            int d= ( bytes[offset+i] & 0xFF ) - ( lastTime[i] & 0xFF );
+            if ( d!=0 ) return d;
+        }
+        return 0;
+    }
+
+}
@@ -1,18 +1,29 @@
 
 package org.hapiserver;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -29,6 +40,20 @@ public abstract class Check {
     
     public static final Logger logger= Logger.getLogger("HapiVerifier");
     
+    /**
+     * null or the run, for the number of datasets checked at once and the
+     * time allowed for each.
+     */
+    private RunContext context= null;
+    
+    /**
+     * limit on the number of datasets checked at once on each host, so that
+     * servers sharing a host are not flooded.  These are keyed by host and
+     * the number of permits, so a new limit is used once "datasetThreads" 
+     * changes, while checks already running release to the old one.
+     */
+    private static final ConcurrentHashMap<String,Semaphore> hostPermits= new ConcurrentHashMap<>();
+    
     public Check( URL hapi, String name ) {
         this.hapi= hapi;
         this.name= name;
@@ -63,24 +88,317 @@ public abstract class Check {
     }
     
     /**
-     * return a JSONObject response from the server, for the URL.
+     * return a JSONObject response from the server, for the URL.  When
+     * the current thread has a FetchCache, responses from the server are 
+     * read once and shared with the other checks.
      * @param url
-     * @return the JSONObject
+     * @return the JSONObject, which should not be modified.
      * @throws org.json.JSONException 
      * @throws java.io.IOException 
      */
     public static JSONObject getJSONObject( URL url ) throws JSONException, IOException {
+        FetchCache fetchCache= FetchCache.getCurrent();
+        if ( fetchCache!=null && !url.getProtocol().equals("file") ) {
+            return fetchCache.get(url);
+        } else {
+            return readJSONObject( url, null );
+        }
+    }
+    
+    /**
+     * read the JSONObject response for the URL.
+     * @param url
+     * @param cache null or the cache keeping JSON responses on disk between runs.
+     * @return the JSONObject
+     * @throws org.json.JSONException 
+     * @throws java.io.IOException 
+     */
+    static JSONObject readJSONObject( URL url, HttpCache cache ) throws JSONException, IOException {
         logger.log(Level.INFO, "opening {0}", url);
-        StringBuilder b= new StringBuilder();
-        BufferedReader read= new BufferedReader( new InputStreamReader(url.openStream()) );
-        String s;
-        while ( ( s=read.readLine() )!=null ) {
-            b.append(s).append("\n");
+        byte[] bytes;
+        if ( cache!=null && ( url.getProtocol().equals("http") || url.getProtocol().equals("https") ) ) {
+            bytes= cache.get(url);
+        } else {
+            bytes= HapiUtil.readFully( HttpFetcher.openStream(url) );
         }
-        if ( b.length()==0 ) {
+        if ( bytes.length==0 ) {
             throw new IllegalArgumentException("JSON request returns empty response: "+url);
         }
-        return new JSONObject(b.toString());
+        return new JSONObject( new String( bytes, "UTF-8" ) );
+    }
+    
+    /**
+     * set the run which this check is part of, for the number of datasets
+     * checked at once for each server and for each host, and the time 
+     * allowed for checking each dataset.  Without a run, datasets are 
+     * checked in sequence, with no limit on their time.  A dataset which 
+     * takes longer than allowed is counted as a failure with the status 
+     * CheckStatus.TIMEOUT.
+     * @param context null or the run.
+     */
+    public void setRunContext( RunContext context ) {
+        this.context= context;
+    }
+    
+    /**
+     * @return null or the run which this check is part of.
+     */
+    public RunContext getRunContext() {
+        return context;
+    }
+    
+    private static Semaphore getHostPermits( URL hapi, int threads ) {
+        String key= hapi.getHost() + " " + threads;
+        Semaphore permits= hostPermits.get(key);
+        if ( permits==null ) {
+            permits= new Semaphore(threads);
+            Semaphore old= hostPermits.putIfAbsent( key, permits );
+            if ( old!=null ) permits= old;
+        }
+        return permits;
+    }
+    
+    /**
+     * return true if the server's capabilities response lists the output format.
+     * @param format the format, like "binary"
+     * @return true if the server says it can send the format.
+     */
+    protected boolean hasOutputFormat( String format ) {
+        try {
+            JSONObject jo= getJSONObject( hapiURL( hapi, "capabilities", null ) );
+            JSONArray formats= jo.getJSONArray("outputFormats");
+            for ( int i=0; i<formats.length(); i++ ) {
+                if ( format.equals( formats.getString(i) ) ) return true;
+            }
+            return false;
+        } catch ( IOException | JSONException ex ) {
+            logger.log(Level.INFO, "unable to read outputFormats from capabilities: {0}", ex.toString());
+            return false;
+        }
+    }
+    
+    /**
+     * return the times to request for the dataset, from sampleStartDate and
+     * sampleStopDate of the info response, or a short range at the end of
+     * the dataset when these are not given (see HapiUtil.getSampleRange).
+     * @param id the dataset id
+     * @param info the info response
+     * @return [ min, max ]
+     * @throws JSONException 
+     */
+    protected String[] getSampleTimes( String id, JSONObject info ) throws JSONException {
+        String[] ss= HapiUtil.getSampleRange(info);
+        
+        String sampleStartDate;
+        String sampleStopDate;
+        if ( info.has("sampleStopDate") ) {
+            sampleStopDate= info.getString("sampleStopDate");
+        } else {
+            if ( info.has("sampleEndDate") ) {
+                logger.log(Level.INFO, "{0} from {1} has sampleEndDate, which should be sampleStopDate", new Object[] { id, hapi } );
+                sampleStopDate= info.getString("sampleEndDate");
+            } else {
+                sampleStopDate= ss[1];
+            }
+        }
+        
+        if ( info.has("sampleStartDate") ) {
+            sampleStartDate= info.getString("sampleStartDate");
+        } else {
+            sampleStartDate= ss[0];
+        }
+        return new String[] { sampleStartDate, sampleStopDate };
+    }
+    
+    /**
+     * request CSV or, when the server offers it, binary data for the 
+     * dataset, and check each record against the parameters: the number of
+     * fields, the record lengths (see RecordStatistics) and the values 
+     * (see RecordValidator).  The response is read one record at a time.
+     * @param id the dataset id
+     * @param parameters the parameters the response should have, in order, starting with time.
+     * @param request more request arguments, like "parameters", or null.
+     * @param min the start time of the request
+     * @param max the stop time of the request
+     * @return the status, which is 2 when records do not match the parameters, and 1 when there are none.
+     * @throws Exception 
+     */
+    protected CheckStatus doDataCheck( String id, JSONArray parameters, Map<String,String> request, String min, String max ) throws Exception {
+        int nf= 0;
+        for ( int i=0; i<parameters.length(); i++ ) {
+            nf+= HapiUtil.numberOfFields( parameters.getJSONObject(i) );
+        }
+        
+        Map<String,String> params= new LinkedHashMap<>();
+        params.put( "id", id );
+        params.put( "time.min", min );
+        params.put( "time.max", max );
+        if ( request!=null ) params.putAll( request );
+        BinaryRecordReader binary= null;
+        if ( hasOutputFormat("binary") ) {
+            try {
+                binary= new BinaryRecordReader(parameters);
+                params.put( "format", "binary" );
+            } catch ( IllegalArgumentException ex ) {
+                logger.log(Level.INFO, "unable to work out binary record length, using csv: {0}", ex.getMessage());
+            }
+        }
+        URL data= hapiURL( hapi, "data", params );
+        logger.log(Level.INFO, "opening {0}", data);
+        
+        RecordStatistics stats= new RecordStatistics(nf);
+        RecordValidator validator= new RecordValidator( parameters, min, max );
+        String problem= null;
+        try ( InputStream in= HttpFetcher.openStream(data) ) {
+            if ( binary!=null ) {
+                problem= binary.read( in, stats, validator );
+            } else {
+                CsvScanner scanner= new CsvScanner(in);
+                while ( scanner.next() ) {
+                    stats.record( scanner.getFieldCount(), scanner.getRecordLength() );
+                    validator.validate( scanner );
+                }
+            }
+        }
+        stats.finish();
+        logger.log(Level.INFO, "Records received: {0}", stats.getRecordCount());
+        logger.info( stats.toString() );
+        if ( stats.getRecordCount()>0 ) {
+            if ( problem!=null ) {
+                return new CheckStatus(2,problem);
+            } else if ( stats.getFieldCountErrors()>0 ) {
+                return new CheckStatus(2,stats.getFieldCountError());
+            } else if ( validator.getProblemCount()>0 ) {
+                logger.info( validator.getProblems() );
+                return new CheckStatus(2,validator.getProblems());
+            } else {
+                return new CheckStatus(0);
+            }
+        } else {
+            return new CheckStatus(1,"empty response");
+        }
+    }
+    
+    /**
+     * a check of one dataset within the catalog.
+     */
+    protected interface DatasetCheck {
+        /**
+         * check the dataset.
+         * @param id the dataset id
+         * @return the status of the check
+         * @throws Exception 
+         */
+        CheckStatus doCheck( String id ) throws Exception;
+    }
+    
+    /**
+     * read the catalog and perform the check on each dataset, returning a 
+     * status with the number of failures.  Several datasets may be checked 
+     * at once, see setRunContext.  The log of each dataset is collected
+     * separately and added to the check's log in catalog order.  Each dataset 
+     * has its own time budget (see setRunContext), within the budget of 
+     * the check.
+     * @param datasetCheck the check for each dataset.
+     * @return the status, which is 1 when any dataset fails.
+     * @throws Exception when the catalog cannot be read, or the first 
+     * (in catalog order) exception thrown by a dataset check.
+     */
+    protected CheckStatus doCatalogCheck( final DatasetCheck datasetCheck ) throws Exception {
+        URL catalog= hapiURL( hapi, "catalog", null );
+        JSONObject jo= getJSONObject(catalog);
+        jo.getString("HAPI");
+        jo.getString("status");
+        JSONArray ja= jo.getJSONArray("catalog");
+        
+        int hostThreads= context==null ? 1 : context.getDatasetThreads();
+        final long datasetTimeoutMillis= context==null ? 0 : context.getDatasetTimeoutMillis();
+        int threads= Math.min( hostThreads, ja.length() );
+        ExecutorService pool= threads>1 ? Executors.newFixedThreadPool(threads) : null;
+        
+        final Semaphore permits= getHostPermits( hapi, hostThreads );
+        
+        LogCapture checkLog= LogCapture.getCurrent();
+        final FetchCache fetchCache= FetchCache.getCurrent();
+        final Deadline checkDeadline= Deadline.getCurrent();
+        if ( checkDeadline!=null ) checkDeadline.setDatasetsTotal( ja.length() );
+        
+        List<String> ids= new ArrayList<>(ja.length());
+        List<LogCapture> logs= new ArrayList<>(ja.length());
+        List<Future<CheckStatus>> futures= new ArrayList<>(ja.length());
+        try {
+            for ( int i=0; i<ja.length(); i++ ) {
+                JSONObject jo1= ja.getJSONObject(i);
+                final String id= jo1.getString("id");
+                final LogCapture log= new LogCapture();
+                FutureTask<CheckStatus> task= new FutureTask<>( new Callable<CheckStatus>() {
+                    @Override
+                    public CheckStatus call() throws Exception {
+                        permits.acquire();
+                        try {
+                            log.attach();
+                            FetchCache oldFetchCache= FetchCache.setCurrent(fetchCache);
+                            Deadline deadline= Deadline.start( checkDeadline, "dataset "+id, datasetTimeoutMillis );
+                            Deadline oldDeadline= Deadline.setCurrent(deadline);
+                            try {
+                                return datasetCheck.doCheck(id);
+                            } catch ( Exception ex ) {
+                                if ( deadline.isExpired() && ( checkDeadline==null || !checkDeadline.isExpired() ) ) {
+                                    logger.log(Level.INFO, deadline.getTimeoutMessage());
+                                    return new CheckStatus( CheckStatus.TIMEOUT, deadline.getTimeoutMessage() );
+                                } else {
+                                    throw ex;
+                                }
+                            } finally {
+                                deadline.finish();
+                                if ( checkDeadline!=null ) checkDeadline.datasetDone();
+                                Deadline.setCurrent(oldDeadline);
+                                FetchCache.setCurrent(oldFetchCache);
+                                log.detach();
+                            }
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+                ids.add(id);
+                logs.add(log);
+                futures.add(task);
+                if ( pool==null ) {
+                    task.run();
+                } else {
+                    pool.execute(task);
+                }
+            }
+
+            int status= 0;
+            int failCount= 0;
+            for ( int i=0; i<futures.size(); i++ ) {
+                CheckStatus st1;
+                try {
+                    st1= futures.get(i).get();
+                } catch ( ExecutionException ex ) {
+                    if ( checkLog!=null ) checkLog.append( logs.get(i) );
+                    Throwable cause= ex.getCause();
+                    if ( cause instanceof Exception ) {
+                        throw (Exception)cause;
+                    } else {
+                        throw ex;
+                    }
+                }
+                if ( checkLog!=null ) checkLog.append( logs.get(i) );
+                if ( st1.getStatus()!=0 ) {
+                    logger.log(Level.INFO, "<img src=''../red.gif''> test returns fail status: {0}<br>", ids.get(i));
+                    status=1;
+                    failCount++;
+                }
+            }
+            CheckStatus result= new CheckStatus(status);
+            result.setMessage("number of failures: "+failCount);
+            return result;
+        } finally {
+            if ( pool!=null ) pool.shutdownNow();
+        }
     }
     
     /**
@@ -102,6 +420,9 @@ public abstract class Check {
             case "partialdata":
                 result= new PartialDataCheck(server);
                 break;
+            case "jsondata":
+                result= new JsonDataCheck(server);
+                break;
             default:
                 String clasName= "" + Character.toUpperCase(checkName.charAt(0)) + checkName.substring(1) + "Check";        
                 try {
@@ -0,0 +1,22 @@
+package org.hapiserver;
+
+import java.net.URL;
+
+/**
+ * receives the result of each check of a run as it completes, see
+ * HapiVerifier.setCheckListener.
+ * @author jbf
+ */
+public interface CheckListener {
+
+    /**
+     * the check is complete.  This is called on the thread which ran the
+     * check, so it should return quickly.
+     * @param server the server URL
+     * @param check the check name
+     * @param status the result, which may be without its log.
+     * @param cached true if the result was kept from an earlier run.
+     */
+    void checkComplete( URL server, String check, CheckStatus status, boolean cached );
+
+}
@@ -7,6 +7,11 @@ package org.hapiserver;
  */
 public class CheckStatus {
     
+    /**
+     * status code for a check which did not finish within its time budget.
+     */
+    public static final int TIMEOUT= 3;
+    
     private int status = 0;
     private String message = "";
     
@@ -65,5 +70,48 @@ public class CheckStatus {
         this.timeStamp = timeStamp;
     }
 
+    private long durationMillis = 0;
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * the time taken by the check, in milliseconds.
+     * @param durationMillis 
+     */
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    private long bytesRead = 0;
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * the number of bytes read from the server by the check.
+     * @param bytesRead 
+     */
+    public void setBytesRead(long bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    private long ttlMillis = 0;
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * the time the result is good for after its time stamp, in milliseconds,
+     * after which the check is run again.  This is 0 for results kept before
+     * TTLs were recorded, which use the configured TTL (see HapiVerifier.getExpiry).
+     * @param ttlMillis 
+     */
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
     
 }
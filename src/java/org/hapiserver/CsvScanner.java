@@ -0,0 +1,225 @@
+package org.hapiserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * finds the records and fields of a CSV stream, working directly on the
+ * bytes.  The stream is read straight into the array of one reusable 
+ * ByteBuffer, and the positions
+ * of each record's fields within the buffer are kept in reusable arrays,
+ * so that scanning allocates nothing per record.  Records end with \n or
+ * \r\n, and fields are separated by commas, except within double quotes,
+ * where "" is an escaped quote.
+ *
+ * Use it like so:
+ * <pre>
+ * CsvScanner scanner= new CsvScanner(in);
+ * while ( scanner.next() ) {
+ *     int nf= scanner.getFieldCount();
+ *     byte[] b= scanner.getBytes();
+ *     int start= scanner.getFieldStart(0), end= scanner.getFieldEnd(0);
+ * }
+ * </pre>
+ * The positions are only valid until the next call to next().
+ * @author jbf
+ */
+public class CsvScanner {
+
+    private static final Charset UTF8= Charset.forName("UTF-8");
+
+    private final InputStream in;
+    private ByteBuffer buffer;
+    private byte[] bytes;
+    private int limit= 0;
+    private boolean eof= false;
+
+    private int recordStart= 0;
+    private int recordEnd= 0;
+    private int recordLength= 0;
+    private int fieldCount= 0;
+    private int[] fieldStarts= new int[16];
+    private int[] fieldEnds= new int[16];
+
+    /**
+     * @param in the stream, which is read as needed but not closed.
+     */
+    public CsvScanner( InputStream in ) {
+        this( in, 64*1024 );
+    }
+
+    /**
+     * @param in the stream, which is read as needed but not closed.
+     * @param bufferSize the initial size of the buffer, which grows if a record is longer.
+     */
+    public CsvScanner( InputStream in, int bufferSize ) {
+        this.in= in;
+        this.buffer= ByteBuffer.allocate(bufferSize);
+        this.bytes= buffer.array();
+    }
+
+    /**
+     * move the current record to the start of the buffer and read more
+     * bytes after it, growing the buffer if the record fills it.
+     * @return the distance the record was moved, which must be subtracted from positions.
+     */
+    private int fill() throws IOException {
+        int shift= recordStart;
+        if ( shift>0 ) {
+            System.arraycopy( bytes, shift, bytes, 0, limit-shift );
+            limit-= shift;
+            recordStart= 0;
+            for ( int i=0; i<=fieldCount; i++ ) {
+                fieldStarts[i]-= shift;
+                fieldEnds[i]-= shift;
+            }
+        }
+        if ( limit==bytes.length ) {
+            buffer= ByteBuffer.allocate( bytes.length*2 );
+            System.arraycopy( bytes, 0, buffer.array(), 0, limit );
+            bytes= buffer.array();
+        }
+        int n= in.read( bytes, limit, bytes.length-limit );
+        if ( n==-1 ) {
+            eof= true;
+        } else {
+            limit+= n;
+        }
+        return shift;
+    }
+
+    private void endField( int end ) {
+        fieldEnds[fieldCount]= end;
+        fieldCount++;
+        if ( fieldCount==fieldStarts.length ) {
+            fieldStarts= Arrays.copyOf( fieldStarts, fieldCount*2 );
+            fieldEnds= Arrays.copyOf( fieldEnds, fieldCount*2 );
+        }
+    }
+
+    /**
+     * advance to the next record.
+     * @return false when there are no more records.
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        recordStart= recordEnd;
+        fieldCount= 0;
+        fieldStarts[0]= recordStart;
+        boolean inQuotes= false;
+        int i= recordStart;
+        while ( true ) {
+            if ( i==limit ) {
+                if ( !eof ) i-= fill();
+                if ( i==limit ) { // end of stream
+                    if ( i==recordStart ) {
+                        recordLength= 0;
+                        return false;
+                    } else {
+                        endField( i );
+                        recordEnd= i;
+                        recordLength= i-recordStart;
+                        return true;
+                    }
+                }
+            }
+            byte b= bytes[i];
+            if ( inQuotes ) {
+                if ( b=='"' ) {
+                    if ( i+1==limit && !eof ) i-= fill();
+                    if ( i+1<limit && bytes[i+1]=='"' ) {
+                        i++; // escaped quote
+                    } else {
+                        inQuotes= false;
+                    }
+                }
+            } else if ( b==',' ) {
+                endField( i );
+                fieldStarts[fieldCount]= i+1;
+            } else if ( b=='\n' ) {
+                int end= ( i>fieldStarts[fieldCount] && bytes[i-1]=='\r' ) ? i-1 : i;
+                endField( end );
+                recordEnd= i+1;
+                recordLength= recordEnd-recordStart;
+                return true;
+            } else if ( b=='"' && i==fieldStarts[fieldCount] ) {
+                inQuotes= true;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * return the array holding the current record.
+     * @return the array, which is reused.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * return the buffer holding the current record, which wraps getBytes().
+     * @return the buffer, which is reused.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * return the number of fields in the current record.  An empty line has one empty field.
+     * @return the number of fields
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * return the position of the first byte of the field in the buffer.
+     * Quoted fields include their quotes.
+     * @param i the field number
+     * @return the position in getBytes()
+     */
+    public int getFieldStart( int i ) {
+        return fieldStarts[i];
+    }
+
+    /**
+     * return the position just after the last byte of the field in the buffer.
+     * @param i the field number
+     * @return the position in getBytes()
+     */
+    public int getFieldEnd( int i ) {
+        return fieldEnds[i];
+    }
+
+    /**
+     * return the length of the current record in bytes, including its terminator.
+     * @return the length
+     */
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    /**
+     * return true if the record starts with #, marking a header line.
+     * @return true if the record starts with #
+     */
+    public boolean isComment() {
+        return recordStart<fieldEnds[0] && bytes[recordStart]=='#';
+    }
+
+    /**
+     * decode the current record, without its terminator, as a String.
+     * This allocates, and is meant for header lines.
+     * @param offset the number of bytes at the start of the record to skip, like 1 to skip the #.
+     * @return the record
+     */
+    public String getRecordString( int offset ) {
+        int start= Math.min( recordStart+offset, fieldEnds[fieldCount-1] );
+        return new String( bytes, start, fieldEnds[fieldCount-1]-start, UTF8 );
+    }
+
+}
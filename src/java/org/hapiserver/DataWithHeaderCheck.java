@@ -1,8 +1,7 @@
 
 package org.hapiserver;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -25,7 +24,7 @@ public class DataWithHeaderCheck extends Check {
         super(hapi,"DataWithHeader");
     }
     
-    private CheckStatus doCheck( String id, String parameters, String min, String max, int nf ) throws Exception {
+    private CheckStatus doCheck( String id, String parameters, String min, String max, int nf, RecordValidator validator ) throws Exception {
         Map<String,String> params= new LinkedHashMap<>();
         params.put( "id", id );
         params.put( "time.min", min );
@@ -36,32 +35,32 @@ public class DataWithHeaderCheck extends Check {
         logger.log(Level.INFO, "opening {0}", data);
         
         
-        int actualFieldCount= -1;
-        int len=0;
-        StringBuilder b= new StringBuilder();
+        RecordStatistics stats= new RecordStatistics(nf);
         StringBuilder jsonB= new StringBuilder();
         
-        try ( BufferedReader read= new BufferedReader( new InputStreamReader(data.openStream()) ) ) {
-            String s;
-            while ( ( s=read.readLine() )!=null ) {
-                if ( s.startsWith("#") ) {
-                    jsonB.append(s.substring(1)).append("\n");
+        try ( InputStream in= HttpFetcher.openStream(data) ) {
+            CsvScanner scanner= new CsvScanner(in);
+            while ( scanner.next() ) {
+                if ( scanner.isComment() ) {
+                    jsonB.append(scanner.getRecordString(1)).append("\n");
                 } else {
-                    if ( actualFieldCount==-1 ) {
-                        actualFieldCount= s.split(",").length;
-                    }
-                    b.append(s).append("\n");
-                    len+= 1;
+                    stats.record( scanner.getFieldCount(), scanner.getRecordLength() );
+                    validator.validate( scanner );
                 }
             }
         }
+        stats.finish();
         
         StringBuilder errors= new StringBuilder();
         
-        logger.log(Level.INFO, "Records received: {0}", len);
-        if ( len>0 ) {
-            if ( actualFieldCount!=nf ) {
-                errors.append("expected ").append(nf).append(" fields but got ").append(actualFieldCount).append("\n");
+        logger.log(Level.INFO, "Records received: {0}", stats.getRecordCount());
+        logger.info( stats.toString() );
+        if ( stats.getRecordCount()>0 ) {
+            if ( stats.getFieldCountErrors()>0 ) {
+                errors.append(stats.getFieldCountError()).append("\n");
+            }
+            if ( validator.getProblemCount()>0 ) {
+                errors.append(validator.getProblems()).append("\n");
             } 
         } else {
             errors.append("empty response").append("\n");
@@ -96,14 +95,7 @@ public class DataWithHeaderCheck extends Check {
             JSONObject arr1= arr.getJSONObject(i);
             String n= arr1.getString("name");
             if ( params.contains(n) ) {
-                if ( arr1.has("size") ) {
-                    JSONArray size= arr1.getJSONArray("size");
-                    int p=1;
-                    for ( int j=0; j<size.length(); j++ ) p*= size.getInt(j);
-                    nf+= p;
-                } else {
-                    nf+= 1;
-                }
+                nf+= HapiUtil.numberOfFields(arr1);
             }
         }
 
@@ -122,7 +114,11 @@ public class DataWithHeaderCheck extends Check {
         } else {
             String parameters= arr.getJSONObject(0).getString("name") + "," + arr.getJSONObject(1).getString("name");
             int nf= numberOfFields(jo,parameters);
-            return doCheck( id, parameters, ss[0], ss[1], nf );
+            JSONArray selected= new JSONArray();
+            selected.put( arr.getJSONObject(0) );
+            selected.put( arr.getJSONObject(1) );
+            RecordValidator validator= new RecordValidator( selected, ss[0], ss[1] );
+            return doCheck( id, parameters, ss[0], ss[1], nf, validator );
         }
 
     }
@@ -130,26 +126,12 @@ public class DataWithHeaderCheck extends Check {
     
     @Override
     public CheckStatus doCheck() throws Exception {
-        URL catalog= hapiURL( hapi, "catalog", null );
-        JSONObject jo= getJSONObject(catalog);
-        jo.getString("HAPI");
-        jo.getString("status");
-        JSONArray ja= jo.getJSONArray("catalog");
-        int status= 0;
-        int failCount= 0;
-        for ( int i=0; i<ja.length(); i++ ) {
-            JSONObject jo1= ja.getJSONObject(i);
-            String id= jo1.getString("id");
-            CheckStatus st1= doCheck(id);
-            if ( st1.getStatus()!=0 ) {
-                logger.log(Level.INFO, "<img src=''../red.gif''> test returns fail status: {0}<br>", id);
-                status=1;
-                failCount++;
+        return doCatalogCheck( new DatasetCheck() {
+            @Override
+            public CheckStatus doCheck(String id) throws Exception {
+                return DataWithHeaderCheck.this.doCheck(id);
             }
-        }
-        CheckStatus result= new CheckStatus(status);
-        result.setMessage("number of failures: "+failCount);
-        return new CheckStatus(status);
+        });
     }
     
 }
@@ -0,0 +1,215 @@
+package org.hapiserver;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * a time budget for a server, check or dataset.  Deadlines nest, so the
+ * deadline of a dataset is within the deadline of its check, which is
+ * within the deadline of its server.  When a budget runs out, a watchdog
+ * thread disconnects the connections opened under the deadline (see
+ * HttpFetcher), so that blocked reads fail right away, and any further
+ * request or read under the deadline throws a DeadlineExceededException.
+ *
+ * Each deadline also counts the bytes read and the datasets checked under
+ * it, so the progress made before the budget ran out can be reported.
+ * @author jbf
+ */
+public class Deadline {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static final ThreadLocal<Deadline> current= new ThreadLocal<>();
+
+    private static final ScheduledExecutorService watchdog= Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t= new Thread( r, "HapiVerifierWatchdog" );
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Deadline parent;
+    private final String name;
+    private final long budgetMillis;
+    private volatile boolean expired= false;
+    private volatile ScheduledFuture<?> alarm;
+    private final AtomicLong bytesRead= new AtomicLong();
+    private final AtomicInteger datasetsDone= new AtomicInteger();
+    private volatile int datasetsTotal= -1;
+    private final Set<HttpURLConnection> connections= Collections.newSetFromMap( new ConcurrentHashMap<HttpURLConnection,Boolean>() );
+
+    private Deadline( Deadline parent, String name, long budgetMillis ) {
+        this.parent= parent;
+        this.name= name;
+        this.budgetMillis= budgetMillis;
+    }
+
+    /**
+     * start the clock on a new budget.
+     * @param parent null or the deadline this is within.
+     * @param name name for messages, like "check data"
+     * @param budgetMillis the time allowed in milliseconds, or zero for no limit other than the parent's.
+     * @return the deadline, which should be finished when the work is done.
+     */
+    public static Deadline start( Deadline parent, String name, long budgetMillis ) {
+        final Deadline result= new Deadline( parent, name, budgetMillis );
+        if ( budgetMillis>0 ) {
+            result.alarm= watchdog.schedule( new Runnable() {
+                @Override
+                public void run() {
+                    result.expire();
+                }
+            }, budgetMillis, TimeUnit.MILLISECONDS );
+        }
+        return result;
+    }
+
+    /**
+     * return the deadline of the current thread.
+     * @return null or the deadline
+     */
+    public static Deadline getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * set the deadline of the current thread.
+     * @param deadline null or the deadline
+     * @return the deadline used before, which should be restored when done.
+     */
+    public static Deadline setCurrent( Deadline deadline ) {
+        Deadline previous= current.get();
+        if ( deadline==null ) {
+            current.remove();
+        } else {
+            current.set(deadline);
+        }
+        return previous;
+    }
+
+    /**
+     * the work is done, so stop the clock.
+     */
+    public void finish() {
+        ScheduledFuture<?> a= alarm;
+        if ( a!=null ) a.cancel(false);
+    }
+
+    private void expire() {
+        expired= true;
+        logger.log(Level.INFO, "time budget of {0} ran out", name );
+        for ( HttpURLConnection c: connections ) {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * return true if this budget or a budget it is within has run out.
+     * @return true if the budget has run out.
+     */
+    public boolean isExpired() {
+        return expired || ( parent!=null && parent.isExpired() );
+    }
+
+    /**
+     * throw an exception if the budget has run out.
+     * @throws DeadlineExceededException
+     */
+    public void check() throws DeadlineExceededException {
+        if ( isExpired() ) {
+            throw new DeadlineExceededException( getTimeoutMessage() );
+        }
+    }
+
+    /**
+     * note the connection, so that it is disconnected if the budget runs out.
+     * @param connection
+     */
+    void register( HttpURLConnection connection ) {
+        for ( Deadline d= this; d!=null; d= d.parent ) {
+            d.connections.add(connection);
+        }
+    }
+
+    /**
+     * the connection is closed and no longer needs to be disconnected.
+     * @param connection
+     */
+    void unregister( HttpURLConnection connection ) {
+        for ( Deadline d= this; d!=null; d= d.parent ) {
+            d.connections.remove(connection);
+        }
+    }
+
+    /**
+     * count bytes read under this deadline.
+     * @param n the number of bytes.
+     */
+    void addBytesRead( long n ) {
+        for ( Deadline d= this; d!=null; d= d.parent ) {
+            d.bytesRead.addAndGet(n);
+        }
+    }
+
+    /**
+     * return the number of bytes read under this deadline.
+     * @return the number of bytes
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * set the number of datasets which are to be checked.
+     * @param n the number of datasets.
+     */
+    public void setDatasetsTotal( int n ) {
+        this.datasetsTotal= n;
+    }
+
+    /**
+     * count a dataset which has been checked.
+     */
+    public void datasetDone() {
+        datasetsDone.incrementAndGet();
+    }
+
+    /**
+     * return a description of the progress made, like
+     * "3 of 12 datasets checked, 45678 bytes read".
+     * @return the progress
+     */
+    public String getProgress() {
+        if ( datasetsTotal>-1 ) {
+            return datasetsDone.get() + " of " + datasetsTotal + " datasets checked, " + bytesRead.get() + " bytes read";
+        } else {
+            return bytesRead.get() + " bytes read";
+        }
+    }
+
+    /**
+     * return a message describing which budget ran out and the progress made.
+     * @return the message
+     */
+    public String getTimeoutMessage() {
+        Deadline d= this;
+        while ( d!=null && !d.expired ) d= d.parent;
+        String which= d==null ? name : d.name;
+        long budget= d==null ? budgetMillis : d.budgetMillis;
+        return "time budget of " + HapiUtil.getDurationForHumans(budget) + " for " + which + " ran out after " + getProgress();
+    }
+
+}
@@ -0,0 +1,17 @@
+package org.hapiserver;
+
+import java.io.InterruptedIOException;
+
+/**
+ * thrown when the time budget of a check, dataset or server runs out.
+ * @author jbf
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+
+    private static final long serialVersionUID= 1L;
+
+    public DeadlineExceededException( String message ) {
+        super(message);
+    }
+
+}
@@ -6,22 +6,254 @@ package org.hapiserver;
  * and open the template in the editor.
  */
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- *
+ * serves the report pages.  The page for each server and the page for
+ * each check are made from the results in the ResultStore when they are
+ * requested, so runs do not write them (see ReportBuilder.setWritePages).
+ * The pages made are kept, up to "pageCacheMegabytes" of ROOT/config.properties,
+ * dropping the least recently used, and a page is made again when its
+ * results have changed.  Other pages, like index.html, are sent from ROOT
+ * as they are, using the compressed copy FILE.gz written with them when
+ * the client accepts gzip.  Pages have ETags, and files Last-Modified
+ * times as well, so clients polling the report get 304 Not Modified until
+ * the page changes.  Expired results are rerun in the background while
+ * the servlet is loaded, see RefreshScheduler.
  * @author jbf
  */
 public class DoReport1 extends HttpServlet {
 
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static final Charset UTF8= Charset.forName("UTF-8");
+
+    /**
+     * a page which has been made, and the version of the results it was made from.
+     */
+    private static class Page {
+        final long version;
+        final byte[] bytes;
+        final String etag;
+        Page( long version, byte[] bytes ) {
+            this.version= version;
+            this.bytes= bytes;
+            CRC32 crc= new CRC32();
+            crc.update(bytes);
+            this.etag= "\"" + Long.toHexString( crc.getValue() ) + "-" + Integer.toHexString( bytes.length ) + "\"";
+        }
+    }
+
+    private final LinkedHashMap<String,Page> pages= new LinkedHashMap<>( 16, 0.75f, true );
+    private long pageBytes= 0;
+    private long maxPageBytes= 20000000;
+    private RefreshScheduler refresher;
+
+    private File getRoot() {
+        String ROOT= getServletContext().getInitParameter("HAPI_VERIFIER_HOME");
+        if ( ROOT==null ) {
+            ROOT= "/tmp/hapiserver/";
+        }
+        return new File(ROOT);
+    }
+
+    @Override
+    public void init() throws ServletException {
+        File root= getRoot();
+        try {
+            ReportBuilder.open(root).setWritePages(false);
+            if ( root.exists() ) {
+                maxPageBytes= HapiVerifier.getConfigInt( HapiVerifier.getConfig(root), "pageCacheMegabytes" ) * 1000000L;
+            }
+            refresher= RefreshScheduler.start(root);
+        } catch ( IOException ex ) {
+            throw new ServletException(ex);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if ( refresher!=null ) refresher.stop();
+    }
+
+    /**
+     * return the page for the path, like "/SERVER.html" or 
+     * "/SERVER/CHECK.html", made from the stored results, or null if there 
+     * are no results for the path.
+     * @param root the root of the testing area
+     * @param path the servlet path
+     * @return null or the page, encoded in UTF-8.
+     * @throws IOException 
+     */
+    private Page getPage( File root, String path ) throws IOException {
+        if ( !path.startsWith("/") || !path.endsWith(".html") ) return null;
+        String name= path.substring( 1, path.length()-5 );
+        int i= name.indexOf('/');
+        String serverName= i==-1 ? name : name.substring(0,i);
+        String checkName= i==-1 ? null : name.substring(i+1);
+        if ( checkName!=null && checkName.contains("/") ) return null;
+
+        ResultStore store= HapiVerifier.getResultStore(root);
+        long version;
+        if ( checkName==null ) {
+            version= store.getVersion(serverName);
+            if ( version==0 ) return null;
+        } else {
+            CheckStatus summary= store.getSummary( serverName, checkName );
+            if ( summary==null ) return null;
+            version= summary.getTimeStamp();
+        }
+
+        synchronized ( pages ) {
+            Page p= pages.get(path);
+            if ( p!=null && p.version==version ) return p;
+        }
+
+        URL server= null;
+        for ( URL u: HapiVerifier.getServers(root) ) {
+            if ( HapiVerifier.serverFolderName(u).equals(serverName) ) {
+                server= u;
+                break;
+            }
+        }
+        if ( server==null ) return null;
+
+        StringWriter w= new StringWriter();
+        if ( checkName==null ) {
+            Map<String,CheckStatus> check= new LinkedHashMap<>();
+            for ( String c: HapiVerifier.getCheckNames(root) ) {
+                CheckStatus status= store.getSummary( serverName, c );
+                if ( status!=null ) check.put( c, status );
+            }
+            ReportBuilder.renderServerPage( server, check, w );
+        } else {
+            CheckStatus status= store.get( serverName, checkName );
+            if ( status==null ) return null;
+            version= status.getTimeStamp();
+            ReportBuilder.renderCheckPage( server, checkName, status, w );
+        }
+        byte[] bytes= w.toString().getBytes(UTF8);
+        Page page= new Page( version, bytes );
+
+        synchronized ( pages ) {
+            Page old= pages.put( path, page );
+            if ( old!=null ) pageBytes-= old.bytes.length;
+            pageBytes+= bytes.length;
+            Iterator<Page> it= pages.values().iterator();
+            while ( pageBytes>maxPageBytes && it.hasNext() ) {
+                pageBytes-= it.next().bytes.length;
+                it.remove();
+            }
+        }
+        logger.log( Level.FINE, "made page {0}, {1} bytes", new Object[] { path, bytes.length } );
+        return page;
+    }
+
+    /**
+     * return true if the client already has the version of the page with
+     * the ETag and modification time, from the If-None-Match and 
+     * If-Modified-Since headers.
+     * @param request the request
+     * @param etag the ETag of the page
+     * @param lastModified -1 or the time the page was modified, in milliseconds since 1970.
+     * @return true if a 304 Not Modified response should be sent.
+     */
+    private static boolean notModified( HttpServletRequest request, String etag, long lastModified ) {
+        String ifNoneMatch= request.getHeader("If-None-Match");
+        if ( ifNoneMatch!=null ) {
+            for ( String s: ifNoneMatch.split(",") ) {
+                s= s.trim();
+                if ( s.equals(etag) || s.equals("*") ) return true;
+            }
+            return false;
+        }
+        if ( lastModified>-1 ) {
+            long since;
+            try {
+                since= request.getDateHeader("If-Modified-Since");
+            } catch ( IllegalArgumentException ex ) {
+                return false;
+            }
+            return since>-1 && lastModified/1000*1000<=since;
+        }
+        return false;
+    }
+
+    /**
+     * return true if the client accepts gzip content encoding.
+     */
+    private static boolean acceptsGzip( HttpServletRequest request ) {
+        String accept= request.getHeader("Accept-Encoding");
+        if ( accept==null ) return false;
+        for ( String s: accept.split(",") ) {
+            String[] ss= s.trim().split(";");
+            if ( ss[0].trim().equalsIgnoreCase("gzip") ) {
+                return !( ss.length>1 && ss[1].trim().replaceAll(" ","").matches("q=0(\\.0*)?") );
+            }
+        }
+        return false;
+    }
+
+    /**
+     * send the file as it is, with the ETag and Last-Modified headers, or
+     * 304 Not Modified if the client already has it.  When the client 
+     * accepts gzip and the file has a compressed copy, FILE.gz, which is as 
+     * new as the file, the copy is sent instead.  The bytes are sent 
+     * without being decoded, using FileChannel.transferTo.
+     * @param request the request
+     * @param response the response
+     * @param f the file
+     * @throws IOException 
+     */
+    private static void sendFile( HttpServletRequest request, HttpServletResponse response, File f ) throws IOException {
+        File gz= new File( f.getPath()+".gz" );
+        boolean gzip= acceptsGzip(request) && gz.exists() && gz.lastModified()>=f.lastModified();
+        File send= gzip ? gz : f;
+        try ( FileChannel channel= FileChannel.open( send.toPath(), StandardOpenOption.READ ) ) {
+            long lastModified= f.lastModified();
+            long size= channel.size();
+            String etag= "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + ( gzip ? "-gz" : "" ) + "\"";
+            response.setContentType( "text/html;charset=" + Charset.defaultCharset().name() ); // the report is written in the default charset.
+            response.setHeader( "ETag", etag );
+            response.setDateHeader( "Last-Modified", lastModified );
+            response.setHeader( "Vary", "Accept-Encoding" );
+            if ( notModified( request, etag, lastModified ) ) {
+                response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+                return;
+            }
+            if ( gzip ) {
+                response.setHeader( "Content-Encoding", "gzip" );
+            }
+            response.setHeader( "Content-Length", String.valueOf(size) );
+            try ( OutputStream out= response.getOutputStream() ) {
+                WritableByteChannel outChannel= Channels.newChannel(out);
+                long pos= 0;
+                while ( pos<size ) {
+                    pos+= channel.transferTo( pos, size-pos, outChannel );
+                }
+            }
+        }
+    }
+
     /**
      * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
      * methods.
@@ -33,28 +265,31 @@ public class DoReport1 extends HttpServlet {
      */
     protected void processRequest(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        String ROOT= getServletContext().getInitParameter("HAPI_VERIFIER_HOME");
-        if ( ROOT==null ) {
-            ROOT= "/tmp/hapiserver/";
+        File root= getRoot();
+        
+        Page page= getPage( root, request.getServletPath() );
+        if ( page!=null ) {
+            response.setContentType("text/html;charset=UTF-8");
+            response.setHeader( "ETag", page.etag );
+            if ( notModified( request, page.etag, -1 ) ) {
+                response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+                return;
+            }
+            response.setContentLength( page.bytes.length );
+            try ( OutputStream out= response.getOutputStream() ) {
+                out.write( page.bytes );
+            }
+            return;
         }
-                
-        File root= new File(ROOT);
+        
         File f= new File(root,request.getServletPath() );
         
-        if ( !f.exists() ) {
+        if ( !f.isFile() ) {
             response.getWriter().write( "<body>This file is not found.  Return to <a href='index.jsp'>home</a></body>");
             return;
         }
         
-        response.setContentType("text/html;charset=UTF-8");
-        try (PrintWriter out = response.getWriter();BufferedReader read= new BufferedReader( new FileReader( f ) ); ) {
-            String s= read.readLine();
-            while ( s!=null ) {
-                out.write(s);
-                out.write('\n');
-                s= read.readLine();
-            }
-        }
+        sendFile( request, response, f );
     }
 
     // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
@@ -4,27 +4,36 @@ package org.hapiserver;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.util.List;
 import java.net.URL;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /**
  *
  * @author jbf
  */
-@WebServlet(name = "DoUpdate", urlPatterns = {"/DoUpdate"})
+@WebServlet(name = "DoUpdate", urlPatterns = {"/DoUpdate"}, asyncSupported = true)
 public class DoUpdate extends HttpServlet {
 
     /**
      * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
      * methods.
      * 
-     * parameters include: action=go, server=, test=.
+     * parameters include: action=go, server=, test=, where server and test
+     * must be in ROOT/servers.txt and ROOT/checks.txt.  Runs are done in the
+     * background (see JobScheduler), and action=go returns at once with the
+     * ID of the job.  action=status&amp;job=ID&amp;since=N returns the job's 
+     * state and events as JSON, and action=events&amp;job=ID sends the events
+     * as they happen, as Server-Sent Events.
      *
      * @param request servlet request
      * @param response servlet response
@@ -33,7 +42,6 @@ public class DoUpdate extends HttpServlet {
      */
     protected void processRequest(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        response.setContentType("text/html;charset=UTF-8");
         
         String action= request.getParameter("action");
         if ( action==null ) {
@@ -45,25 +53,55 @@ public class DoUpdate extends HttpServlet {
         }
         File root= new File(ROOT);
         
-        try (PrintStream out = new PrintStream( response.getOutputStream() ) ) {
+        if ( action.equals("status") ) {
+            sendStatus( request, response );
+            return;
+        } else if ( action.equals("events") ) {
+            sendEvents( request, response );
+            return;
+        }
+        
+        String server= request.getParameter("server"); // might be null
+        String test= request.getParameter("test"); // might be null.
+        
+        if ( action.equals("go") ) {
+            if ( server!=null && !isServer( root, server ) ) {
+                response.sendError( HttpServletResponse.SC_BAD_REQUEST, "server is not in servers.txt" );
+                return;
+            }
+            if ( test!=null && !HapiVerifier.getCheckNames(root).contains(test) ) {
+                response.sendError( HttpServletResponse.SC_BAD_REQUEST, "test is not in checks.txt" );
+                return;
+            }
+        }
+        
+        response.setContentType("text/html;charset=UTF-8");
+        
+        try (PrintStream out = new PrintStream( response.getOutputStream(), false, "UTF-8" ) ) {
             if ( action.equals("go") ) {
-                String server= request.getParameter("server"); // might be null
-                String test= request.getParameter("test"); // might be null.
+                JobScheduler.Job job= JobScheduler.submit( root, server, test );
+                response.setHeader( "X-Job-Id", job.getId() );
                 
                 out.print("<body>");
-                File newIndexFile= new File( root, "index.html.tmp" );
-                if ( newIndexFile.exists() ) {
-                    out.print("test appears to be running, because "+newIndexFile+" exists.<br>" );
-                } else {
-                    out.print("test system is idle.<br>" );
+                out.print("Job <a href='"+request.getRequestURI()+"?action=status&job="+job.getId()+"'>"+job.getId()+"</a> is "+job.getState()+".<br>" );
+                if ( job.getRequestCount()>1 ) {
+                    out.print("This was already requested, so it joins the run which is "+job.getState()+".<br>" );
                 }
                 out.print("Return to <a href='index.jsp'>home</a>" );
-                out.print("<h4>Log output from run:</h4>");
-                if ( HapiVerifier.isRunning( root) ) {
-                    out.println("Busy running.  Old results are available <a href='index.html'>here</a>.");
-                } else {
-                    HapiVerifier.doAllServers( out, root, server, test );
-                }
+                out.print("<h4>Checks completed:</h4>");
+                out.println("<div id='events'></div>");
+                out.println("<script>");
+                out.println("var source= new EventSource('"+request.getRequestURI()+"?action=events&job="+job.getId()+"');");
+                out.println("source.addEventListener( 'check', function(e) { var d= JSON.parse(e.data);");
+                out.println("  var div= document.createElement('div'); div.textContent= d.server+' '+d.check+': '+( d.status==0 ? 'ok' : 'status '+d.status )+' '+d.message+( d.cached ? ' (kept)' : '' );");
+                out.println("  document.getElementById('events').appendChild(div); } );");
+                out.println("source.addEventListener( 'finished', function(e) { var d= JSON.parse(e.data); source.close();");
+                out.println("  var div= document.createElement('div'); var b= document.createElement('b'); b.textContent= d.state; div.appendChild(b);");
+                out.println("  div.appendChild( document.createTextNode( ' '+d.message+'. See the ' ) );");
+                out.println("  var a= document.createElement('a'); a.href= 'index.html'; a.textContent= 'results'; div.appendChild(a);");
+                out.println("  div.appendChild( document.createTextNode('.') );");
+                out.println("  document.getElementById('events').appendChild(div); } );");
+                out.println("</script>");
                 
                 if ( test!=null && server!=null ) {
                     String testOutput= HapiVerifier.serverFolderName(new URL(server)) + "/" + test + ".html";
@@ -74,36 +112,160 @@ public class DoUpdate extends HttpServlet {
                 
             } else {
                 out.println( "<body>" );
-                File newIndexFile= new File( root, "index.html.tmp" );
-                if ( newIndexFile.exists() ) {
-                    out.print("test appears to be running, because "+newIndexFile+" exists.<br>" );
+                List<JobScheduler.Job> jobs= JobScheduler.getJobs();
+                if ( jobs.isEmpty() ) {
+                    out.print("no jobs have been run.<br>" );
                 } else {
-                    out.print("test system is idle.<br>" );
+                    out.println( "Recent jobs:<br>" );
+                    for ( JobScheduler.Job job: jobs ) {
+                        out.println( "<a href='"+request.getRequestURI()+"?action=status&job="+job.getId()+"'>"+job.getId()+"</a> "
+                                + escape( job.isRefresh() ? "expired results" : 
+                                ( job.getServer()==null ? "all servers" : job.getServer() ) + " "
+                                + ( job.getTest()==null ? "all tests" : job.getTest() ) ) + ": " + job.getState() + " " + escape( job.getMessage() ) + "<br>" );
+                    }
                 }
                 
                 out.print("Return to <a href='index.jsp'>home</a>" );
                 out.println( "<h4>Click to run test on all servers:</h4>");
-                out.println( "<small>this will take a while, and server will not respond nicely.</small><br>");
+                out.println( "<small>this will take a while, and runs in the background.</small><br>");
                 out.println( "Run <a href='"+request.getRequestURI()+"?action=go'>All Tests</a>" );
                 
                 out.println( "<h4>Click to run all tests on an individual server:</h4>");
                 List<URL> servers= HapiVerifier.getServers(root);
-                for ( URL server: servers ) {
-                    out.println( "<a href='"+request.getRequestURI()+"?server="+server+"&action=go'>"+server+"</a><br>" );
+                for ( URL server1: servers ) {
+                    out.println( "<a href='"+request.getRequestURI()+"?server="+server1+"&action=go'>"+server1+"</a><br>" );
                 }
 
                 out.println( "<h4>Click to run a tests on all servers:</h4>");
                 List<String> tests= HapiVerifier.getCheckNames(root);
-                for ( String test: tests ) {
-                    out.println( "<a href='"+request.getRequestURI()+"?test="+test+"&action=go'>"+test+"</a><br>" );
+                for ( String test1: tests ) {
+                    out.println( "<a href='"+request.getRequestURI()+"?test="+test1+"&action=go'>"+test1+"</a><br>" );
                 }
                 
                 out.println( "</body>" );
             }
         }
         
-        
-
+    }
+    
+    /**
+     * return true if the server is one of those in ROOT/servers.txt.
+     * The URLs are compared as strings, since URL.equals looks up hosts.
+     */
+    private static boolean isServer( File root, String server ) throws IOException {
+        for ( URL u: HapiVerifier.getServers(root) ) {
+            if ( u.toString().equals(server) ) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * escape the text for HTML.
+     */
+    private static String escape( String s ) {
+        StringBuilder b= new StringBuilder( s.length() );
+        for ( int i=0; i<s.length(); i++ ) {
+            char c= s.charAt(i);
+            switch ( c ) {
+                case '<': b.append("&lt;"); break;
+                case '>': b.append("&gt;"); break;
+                case '&': b.append("&amp;"); break;
+                case '"': b.append("&quot;"); break;
+                case '\'': b.append("&#39;"); break;
+                default: b.append(c);
+            }
+        }
+        return b.toString();
+    }
+    
+    /**
+     * return the job named by the "job" parameter, sending 404 if there is none.
+     */
+    private static JobScheduler.Job getJob( HttpServletRequest request, HttpServletResponse response ) throws IOException {
+        String id= request.getParameter("job");
+        JobScheduler.Job job= id==null ? null : JobScheduler.getJob(id);
+        if ( job==null ) {
+            response.sendError( HttpServletResponse.SC_NOT_FOUND, "no such job: "+id );
+        }
+        return job;
+    }
+    
+    /**
+     * return the since parameter, or the Last-Event-ID header sent when an
+     * event stream reconnects, or 0.
+     */
+    private static long getSince( HttpServletRequest request ) {
+        String since= request.getParameter("since");
+        if ( since==null ) since= request.getHeader("Last-Event-ID");
+        if ( since==null ) return 0;
+        try {
+            return Long.parseLong(since.trim());
+        } catch ( NumberFormatException ex ) {
+            return 0;
+        }
+    }
+    
+    /**
+     * send the job's state and its events after since as JSON.
+     */
+    private static void sendStatus( HttpServletRequest request, HttpServletResponse response ) throws IOException {
+        JobScheduler.Job job= getJob( request, response );
+        if ( job==null ) return;
+        response.setContentType("application/json;charset=UTF-8");
+        response.setHeader( "Cache-Control", "no-cache" );
+        try ( PrintWriter out= response.getWriter() ) {
+            out.write( job.toJSON( getSince(request) ).toString() );
+        } catch ( JSONException ex ) {
+            throw new IOException(ex);
+        }
+    }
+    
+    /**
+     * send the job's events as Server-Sent Events, with event type "check"
+     * for each check and "finished" once the job is done.  The request 
+     * is handled asynchronously, so no request thread waits for the events.
+     */
+    private static void sendEvents( HttpServletRequest request, HttpServletResponse response ) throws IOException {
+        JobScheduler.Job job= getJob( request, response );
+        if ( job==null ) return;
+        response.setContentType("text/event-stream;charset=UTF-8");
+        response.setHeader( "Cache-Control", "no-cache" );
+        final AsyncContext context= request.startAsync();
+        context.setTimeout(0);
+        final PrintWriter out= response.getWriter();
+        out.write( "retry: 5000\n\n" );
+        out.flush();
+        job.subscribe( getSince(request), new JobScheduler.JobListener() {
+            @Override
+            public boolean event( JobScheduler.Job job, JSONObject event ) {
+                String type= event.optString("type");
+                if ( !type.equals("check") ) return true;
+                out.write( "id: " + event.optLong("seq") + "\nevent: check\ndata: " + event.toString() + "\n\n" );
+                out.flush();
+                if ( out.checkError() ) {
+                    context.complete();
+                    return false;
+                }
+                return true;
+            }
+            @Override
+            public void finished( JobScheduler.Job job ) {
+                try {
+                    JSONObject status= job.toJSON( Long.MAX_VALUE );
+                    status.remove("events");
+                    out.write( "event: finished\ndata: " + status.toString() + "\n\n" );
+                    out.flush();
+                } catch ( JSONException ex ) {
+                    out.write( "event: finished\ndata: {}\n\n" );
+                } finally {
+                    context.complete();
+                }
+            }
+            @Override
+            public void dropped( JobScheduler.Job job ) {
+                context.complete(); // the client reconnects with Last-Event-ID.
+            }
+        });
     }
 
     // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
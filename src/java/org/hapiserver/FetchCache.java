@@ -0,0 +1,127 @@
+package org.hapiserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * remembers the JSON responses read while checking one server, so that the
+ * catalog and info responses are downloaded and parsed once and shared by
+ * all the checks.  Only the most recently used responses are kept, and a
+ * URL requested by several threads at once is only fetched once, with the
+ * other threads waiting for its result.  Failed requests are not
+ * remembered.  Responses are read through the run's HttpCache, when there
+ * is one.
+ *
+ * The cache of the current thread is used by Check.getJSONObject.
+ * @author jbf
+ */
+public class FetchCache {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static final ThreadLocal<FetchCache> current= new ThreadLocal<>();
+
+    private final Map<String,FutureTask<JSONObject>> entries;
+
+    private final HttpCache httpCache;
+
+    /**
+     * create the cache.
+     * @param maxEntries the number of responses kept.
+     * @param httpCache null or the cache keeping responses on disk between runs.
+     */
+    public FetchCache( final int maxEntries, HttpCache httpCache ) {
+        this.httpCache= httpCache;
+        this.entries= new LinkedHashMap<String,FutureTask<JSONObject>>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FutureTask<JSONObject>> eldest) {
+                return size()>maxEntries;
+            }
+        };
+    }
+
+    /**
+     * return the cache used by the current thread.
+     * @return null or the cache
+     */
+    public static FetchCache getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * set the cache used by the current thread.
+     * @param cache null or the cache
+     * @return the cache used before, which should be restored when done.
+     */
+    public static FetchCache setCurrent( FetchCache cache ) {
+        FetchCache previous= current.get();
+        if ( cache==null ) {
+            current.remove();
+        } else {
+            current.set(cache);
+        }
+        return previous;
+    }
+
+    /**
+     * return the JSONObject response for the URL, reading it if it has not
+     * been read already.
+     * @param url
+     * @return the JSONObject, which should not be modified.
+     * @throws JSONException
+     * @throws IOException
+     */
+    public JSONObject get( final URL url ) throws JSONException, IOException {
+        String key= url.toString();
+        FutureTask<JSONObject> task;
+        boolean fetch= false;
+        synchronized ( entries ) {
+            task= entries.get(key);
+            if ( task==null ) {
+                task= new FutureTask<>( new Callable<JSONObject>() {
+                    @Override
+                    public JSONObject call() throws Exception {
+                        return Check.readJSONObject( url, httpCache );
+                    }
+                });
+                entries.put( key, task );
+                fetch= true;
+            }
+        }
+        if ( fetch ) {
+            task.run();
+        } else {
+            logger.log(Level.INFO, "using response already read from {0}", url);
+        }
+        try {
+            return task.get();
+        } catch ( InterruptedException ex ) {
+            throw new InterruptedIOException("interrupted while waiting for "+url);
+        } catch ( ExecutionException ex ) {
+            synchronized ( entries ) {
+                if ( entries.get(key)==task ) entries.remove(key);
+            }
+            Throwable cause= ex.getCause();
+            if ( cause instanceof IOException ) {
+                throw (IOException)cause;
+            } else if ( cause instanceof JSONException ) {
+                throw (JSONException)cause;
+            } else if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+}
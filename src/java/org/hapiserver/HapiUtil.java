@@ -5,6 +5,10 @@
  */
 package org.hapiserver;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -12,8 +16,8 @@ import java.text.ParseException;
 import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -37,6 +41,10 @@ public class HapiUtil {
     }
 
     
+    private static final int[] ONE_MINUTE= { 0, 0, 0, 0, 1, 0, 0 };
+    private static final int[] ONE_HOUR= { 0, 0, 0, 1, 0, 0, 0 };
+    private static final int[] ONE_DAY= { 0, 0, 1, 0, 0, 0, 0 };
+    
     /**
      * 
      * @param info
@@ -58,33 +66,45 @@ public class HapiUtil {
         }
         
         if ( sampleRange==null ) {
+            long stop= TimeUtil.toEpochNanos(istopDate);
+            int[] sampleLength= ONE_DAY;
             if ( info.has("cadence") ) {
                 try{
-                    System.arraycopy(istopDate, 0, istartDate, 0, 6);
                     double cs= cadenceSeconds(info.getString("cadence"));
                     if ( cs<1. ) {
-                        istartDate[4]-=1;
+                        sampleLength= ONE_MINUTE;
                     } else if ( cs<60. ) {
-                        istartDate[3]-=1;
-                    } else if ( cs<3600. ) {
-                        istartDate[2]-=1;
-                    } else {
-                        istartDate[2]-=1;
+                        sampleLength= ONE_HOUR;
                     }
                 } catch ( ParseException ex ) {
                     logger.log(Level.WARNING, "parse error in cadence: {0}", info.getString("cadence"));
                 }
-            } else {
-                System.arraycopy(istopDate, 0, istartDate, 0, 6);
-                istartDate[2]-=1;
             }
-            istartDate= TimeUtil.normalizeTimeComponents(istartDate);
-            return new String[] { TimeUtil.formatISO8601Datum(istartDate), TimeUtil.formatISO8601Datum(istopDate) };
+            long start= Math.max( TimeUtil.subtractDuration( stop, sampleLength ), TimeUtil.toEpochNanos(istartDate) );
+            return new String[] { TimeUtil.formatEpochNanos(start), TimeUtil.formatISO8601Datum(istopDate) };
         } else {
             return sampleRange;
         }
     }
     
+    /**
+     * return the number of CSV fields used by a parameter of the info 
+     * response, which is the product of its size, or 1 for scalars.
+     * @param parameter the parameter from the info response.
+     * @return the number of fields
+     * @throws JSONException 
+     */
+    public static int numberOfFields( JSONObject parameter ) throws JSONException {
+        if ( parameter.has("size") ) {
+            JSONArray size= parameter.getJSONArray("size");
+            int p=1;
+            for ( int j=0; j<size.length(); j++ ) p*= size.getInt(j);
+            return p;
+        } else {
+            return 1;
+        }
+    }
+    
     /**
      * transfers the data from one channel to another.  src and dest are
      * closed after the operation is complete.
@@ -104,6 +124,44 @@ public class HapiUtil {
         src.close();
     }
     
+    /**
+     * write a gzip compressed copy of the file next to it, as FILE.gz, so that
+     * it can be sent to clients which accept gzip without compressing it for 
+     * each request.  The copy is written to a temporary file first, so a 
+     * partial copy is never seen.
+     * @param f the file
+     * @return the compressed copy
+     * @throws IOException 
+     */
+    public static File writeGzipCopy( File f ) throws IOException {
+        File gz= new File( f.getPath() + ".gz" );
+        File tmp= new File( f.getPath() + ".gz." + Thread.currentThread().getId() + ".tmp" );
+        transfer( new FileInputStream(f), new GZIPOutputStream( new FileOutputStream(tmp) ) );
+        if ( !tmp.renameTo(gz) ) {
+            throw new IOException("unable to rename file to "+gz);
+        }
+        return gz;
+    }
+    
+    /**
+     * read the entire stream, and close it.
+     * @param in
+     * @return the bytes read.
+     * @throws IOException 
+     */
+    public static byte[] readFully( InputStream in ) throws IOException {
+        try ( InputStream in1= in ) {
+            ByteArrayOutputStream out= new ByteArrayOutputStream();
+            final byte[] buffer = new byte[ 16 * 1024 ];
+            int i= in1.read(buffer);
+            while ( i != -1) {
+                out.write(buffer,0,i);
+                i= in1.read(buffer);
+            }
+            return out.toByteArray();
+        }
+    }
+    
     /**
      * return the duration in a easily-human-consumable form.
      * @param dt the duration in milliseconds.
@@ -123,25 +181,14 @@ public class HapiUtil {
         }
     }
     
+    /**
+     * convert the log into HTML, see HtmlLogRenderer, which can also write
+     * the HTML directly to a Writer.
+     * @param raw the log
+     * @return the HTML
+     */
     public static String makeHtml( String raw ) {
-        StringBuilder builder= new StringBuilder();
-        String[] ss= raw.split("\n");
-        Pattern url= Pattern.compile("(http|ftp|https):\\/\\/[\\w\\-_]+(\\.[\\w\\-_]+)+([\\w\\-\\.,@?^=%&amp;:/~\\+#]*[\\w\\-\\@?^=%&amp;/~\\+#])?");
-        
-        for ( String s: ss ) {
-            Matcher m= url.matcher(s);
-            int more= 0;
-            while ( m.find() ) {
-                builder.append( s.substring(0,m.start()) );
-                more= m.end();
-                String surl= s.substring(m.start(),more);
-                builder.append("<a href='").append(surl).append("'>").append(surl.replaceAll("\\&", "&amp;") ).append("</a>");
-            }
-            builder.append( s.substring(more) ); // I know there's a matcher field for this, just can't find it...
-            builder.append( "<br>\n");
-        }
-        
-        return builder.toString();
+        return HtmlLogRenderer.render( raw );
     }
 
 }
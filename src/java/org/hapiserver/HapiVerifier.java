@@ -7,10 +7,12 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
@@ -18,18 +20,27 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -44,105 +55,226 @@ public class HapiVerifier {
     
     /**
      * perform the check, adding the result CheckStatus to the collection of results from other tests.
+     * When there is already a result which has not expired (see getExpiry),
+     * it is added without its log, which can be read with haveCached.
+     * A check which does not finish within its time budget gets the status
+     * CheckStatus.TIMEOUT, with the progress it made in the message.
+     * The time taken and the bytes read are kept with the result, which is
+     * added to the history (see ResultHistory).  Each new result gets a TTL
+     * from the "ttlMinutes" settings, shortened at random by up to
+     * "ttlJitterPercent", so results made together expire at different times.
+     * @param context the run, for its root and settings.
      * @param results CheckStatus result for each check
      * @param check the check to perform.
      */
-    public static void doCheck( LinkedHashMap<String,CheckStatus> results, Check check ) {
+    public static void doCheck( RunContext context, LinkedHashMap<String,CheckStatus> results, Check check ) {
         String checkName= check.getName();
-        CheckStatus cached= haveCached(check);
+        File root= context.getRoot();
+        Properties config= context.getConfig();
+        CheckStatus cached= haveCachedSummary( root, check );
+        if ( cached!=null && getExpiry( config, serverFolderName(check.getHapi()), checkName, cached )<=System.currentTimeMillis() ) {
+            logger.log(Level.FINE, "result of {0} has expired", check);
+            cached= null;
+        }
         if ( cached!=null ) {
             results.put( checkName, cached );
+            fireCheckComplete( check, cached, true );
             return;
         }
         
         logger.log(Level.INFO, "\n### {0} ###", check.toString());
-        final StringBuilder b= new StringBuilder();
-        Handler h= new Handler() {
-            @Override
-            public void publish(LogRecord record) {
-                SimpleFormatter formatter= new SimpleFormatter();
-                String s= formatter.formatMessage(record);
-                b.append(s);
-                b.append("\n");
-            }
-
-            @Override
-            public void flush() {   
-            }
-
-            @Override
-            public void close() throws SecurityException {
-            }
-        };
-        logger.addHandler(h);
+        long t0= new java.util.Date().getTime();
+        LogCapture log= new LogCapture();
+        log.attach();
+        Deadline deadline= Deadline.start( Deadline.getCurrent(), "check "+checkName, context.getCheckTimeoutMillis() );
+        Deadline oldDeadline= Deadline.setCurrent(deadline);
         CheckStatus checkStatus;
+        check.setRunContext(context);
         try {
             checkStatus= check.doCheck();
         } catch ( Exception ex ) {
-            checkStatus= new CheckStatus(1,ex.toString());
+            if ( deadline.isExpired() ) {
+                checkStatus= new CheckStatus( CheckStatus.TIMEOUT, deadline.getTimeoutMessage() );
+            } else {
+                checkStatus= new CheckStatus(1,ex.toString());
+            }
+        } finally {
+            deadline.finish();
+            Deadline.setCurrent(oldDeadline);
+            log.detach();
         }
-        checkStatus.setLog(b.toString());
-        checkStatus.setTimeStamp( new java.util.Date().getTime() );
-        logger.removeHandler(h);
+        long t1= new java.util.Date().getTime();
+        checkStatus.setLog(log.getLog());
+        checkStatus.setTimeStamp( t1 );
+        checkStatus.setDurationMillis( t1 - t0 );
+        checkStatus.setBytesRead( deadline.getBytesRead() );
+        checkStatus.setTtlMillis( pickTtlMillis( config, checkName ) );
         results.put( checkName, checkStatus );
         try {
-            cache( check, checkStatus );
+            cache( root, check, checkStatus );
         } catch ( IOException ex ) {
             logger.warning("unable to cache result");
         }
+        try {
+            ResultHistory.open(root).record( serverFolderName(check.getHapi()), checkName, checkStatus );
+        } catch ( IOException ex ) {
+            logger.log( Level.WARNING, "unable to record history: {0}", ex );
+        }
+        fireCheckComplete( check, checkStatus, false );
+    }
+    
+    /**
+     * return the TTL of the check's results, from the setting
+     * "ttlMinutes.CHECK", or "ttlMinutes" when there is none for the check.
+     * @param config the configuration, see getConfig.
+     * @param checkName the check name, like "capabilities"
+     * @return the TTL in milliseconds, or 0 if results do not expire.
+     */
+    public static long getTtlMillis( Properties config, String checkName ) {
+        String name= "ttlMinutes." + checkName;
+        if ( config.getProperty(name)==null ) name= "ttlMinutes";
+        return getConfigInt( config, name ) * 60000L;
+    }
+    
+    /**
+     * return the TTL for a new result of the check, which is the check's TTL
+     * less a random part of up to "ttlJitterPercent" of it.
+     */
+    private static long pickTtlMillis( Properties config, String checkName ) {
+        long ttl= getTtlMillis( config, checkName );
+        double jitter= getConfigInt( config, "ttlJitterPercent" ) / 100.;
+        return ttl - (long)( ttl * jitter * ThreadLocalRandom.current().nextDouble() );
+    }
+    
+    /**
+     * return the time when the result expires and the check should be run
+     * again.  Results without a TTL of their own, kept before TTLs were
+     * recorded, use the configured TTL less a part of the jitter which 
+     * depends on the server and check, so they are spread out as well.
+     * @param config the configuration, see getConfig.
+     * @param serverName the server folder name, see serverFolderName
+     * @param checkName the check name
+     * @param c the result
+     * @return the time in milliseconds since 1970, or Long.MAX_VALUE if it does not expire.
+     */
+    public static long getExpiry( Properties config, String serverName, String checkName, CheckStatus c ) {
+        long ttl= c.getTtlMillis();
+        if ( ttl==0 ) {
+            ttl= getTtlMillis( config, checkName );
+            if ( ttl==0 ) return Long.MAX_VALUE;
+            double jitter= getConfigInt( config, "ttlJitterPercent" ) / 100.;
+            double f= ( ( serverName + "/" + checkName ).hashCode() & 0xFFFF ) / 65536.;
+            ttl= ttl - (long)( ttl * jitter * f );
+        }
+        return c.getTimeStamp() + ttl;
+    }
+    
+    private static final ThreadLocal<CheckListener> checkListener= new ThreadLocal<>();
+    
+    /**
+     * set the listener which is told of the result of each check run by 
+     * this thread as it completes.  doAllServers passes the listener on to
+     * the threads which check the servers, so each run has its own listener
+     * and is not told of the checks of other runs.
+     * @param listener null or the listener
+     * @return the listener used before, which should be restored when done.
+     */
+    public static CheckListener setCheckListener( CheckListener listener ) {
+        CheckListener previous= checkListener.get();
+        if ( listener==null ) {
+            checkListener.remove();
+        } else {
+            checkListener.set(listener);
+        }
+        return previous;
+    }
+    
+    private static void fireCheckComplete( Check check, CheckStatus status, boolean cached ) {
+        CheckListener l= checkListener.get();
+        if ( l==null ) return;
+        try {
+            l.checkComplete( check.getHapi(), check.getName(), status, cached );
+        } catch ( RuntimeException ex ) {
+            logger.log( Level.WARNING, "check listener failed", ex );
+        }
     }
     
     /**
      * return null or the cached check status.
+     * @param root the root of the testing area.
      * @param check
      * @return 
      */
-    public static CheckStatus haveCached( Check check ) {
-        File serverRoot= HapiVerifier.serverFolder(check.getHapi());
-        File cacheFile= new File( serverRoot, check.getName() + ".json" );
-        if ( cacheFile.exists() ) {
-            try {
-                JSONObject jo= getJSONObject( new URL( "file:"+ cacheFile ) );
-                int status= jo.getInt("status");
-                String message= jo.getString("message");
-                CheckStatus result= new CheckStatus(status,message);
-                result.setLog( jo.getString("log") );
-                if ( jo.has("timeStamp") ) {
-                    result.setTimeStamp(jo.getLong("timeStamp"));
-                }
-                return result;
-            } catch (MalformedURLException ex) {
-                Logger.getLogger(Check.class.getName()).log(Level.SEVERE, null, ex);
-            } catch (JSONException | IOException ex) {
-                Logger.getLogger(Check.class.getName()).log(Level.SEVERE, null, ex);
-            }
+    public static CheckStatus haveCached( File root, Check check ) {
+        try {
+            return getResultStore(root).get( serverFolderName(check.getHapi()), check.getName() );
+        } catch ( IOException ex ) {
+            Logger.getLogger(Check.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * return null or the cached check status, without its log.
+     * @param root the root of the testing area.
+     * @param check
+     * @return 
+     */
+    public static CheckStatus haveCachedSummary( File root, Check check ) {
+        try {
+            return getResultStore(root).getSummary( serverFolderName(check.getHapi()), check.getName() );
+        } catch ( IOException ex ) {
+            Logger.getLogger(Check.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
         }
-        return null;
     }
     
     /**
      * add the result to the cache of results.
+     * @param root the root of the testing area.
      * @param check
      * @param status
      * @throws IOException 
      */
-    public static void cache( Check check, CheckStatus status ) throws IOException {
-        File serverRoot= HapiVerifier.serverFolder(check.getHapi());
-        if ( !serverRoot.exists() && serverRoot.mkdirs() ) {
-            throw new IOException("unable to mkdir "+serverRoot);
-        }
-        File cacheFile= new File( serverRoot, check.getName() + ".json" );
-        try ( FileWriter fw= new FileWriter(cacheFile) ) {
-            JSONObject jo= new JSONObject();
-            jo.put( "status", status.getStatus() );
-            jo.put( "message", status.getMessage() );
-            jo.put( "log", status.getLog() );
-            jo.put( "timeStamp", status.getTimeStamp() );
-            jo.write( fw );
-        } catch (JSONException ex) {
-            Logger.getLogger(Check.class.getName()).log(Level.SEVERE, null, ex);
+    public static void cache( File root, Check check, CheckStatus status ) throws IOException {
+        getResultStore(root).put( serverFolderName(check.getHapi()), check.getName(), status );
+        logger.log(Level.FINE, "stored result of {0}", check);
+    }
+    
+    /**
+     * return the store of results for the root, which are kept by server 
+     * folder name and check name.  When the store is first created, the
+     * results left in the server folders as ROOT/SERVER/CHECK.json are read 
+     * into it.
+     * @param root the output folder.
+     * @return the store
+     * @throws IOException 
+     */
+    public static synchronized ResultStore getResultStore( File root ) throws IOException {
+        boolean fresh= !new File( root, "results.journal" ).exists();
+        ResultStore store= ResultStore.open(root);
+        if ( fresh ) {
+            File[] ff= root.listFiles();
+            for ( File f: ff ) {
+                if ( !f.isDirectory() ) continue;
+                for ( File f1: f.listFiles() ) {
+                    String name= f1.getName();
+                    if ( !name.endsWith(".json") ) continue;
+                    try {
+                        JSONObject jo= getJSONObject( new URL( "file:"+ f1 ) );
+                        CheckStatus result= new CheckStatus( jo.getInt("status"), jo.getString("message") );
+                        result.setLog( jo.getString("log") );
+                        if ( jo.has("timeStamp") ) {
+                            result.setTimeStamp(jo.getLong("timeStamp"));
+                        }
+                        store.put( f.getName(), name.substring(0,name.length()-5), result );
+                    } catch ( JSONException | IOException ex ) {
+                        logger.log( Level.WARNING, "unable to read old result file {0}: {1}", new Object[] { f1, ex } );
+                    }
+                }
+            }
         }
-        logger.log(Level.INFO, "wrote cache file {0}", cacheFile);
+        return store;
     }
     
     /**
@@ -172,6 +304,7 @@ public class HapiVerifier {
             checks.add( "info" );
             checks.add( "data" );
             checks.add( "partialdata" );
+            checks.add( "jsondata" );
             try ( BufferedWriter write= new BufferedWriter( new FileWriter(checksFile) ) ) {
                 for ( String check1: checks ) {
                     write.write(check1);
@@ -226,19 +359,42 @@ public class HapiVerifier {
      * @throws java.io.IOException
      */
     public static Map<String,CheckStatus> doChecks( File root, URL server ) throws IOException {
+        return doChecks( new RunContext(root), server, getCheckNames(root) );
+    }
+    
+    /**
+     * run the checks on the server.  JSON responses like the catalog and 
+     * info responses are read once and shared by the checks.  Once the time 
+     * budget for the server runs out, the remaining checks get the status 
+     * CheckStatus.TIMEOUT.
+     * @param context the run, for its root and settings.
+     * @param server the HAPI server URL, ending in "/hapi"
+     * @param checkNames the checks to run, see getCheckNames.
+     * @return a map from check name to CheckStatus
+     * @throws java.io.IOException
+     */
+    public static Map<String,CheckStatus> doChecks( RunContext context, URL server, List<String> checkNames ) throws IOException {
         LinkedHashMap<String,CheckStatus> results= new LinkedHashMap<>();
         List<Check> checks= new ArrayList<>();
         
-        List<String> checkNames= getCheckNames(root);
         for ( String checkName: checkNames ) {
             checks.add( Check.lookup(checkName,server) );
         }
         
-        for ( Check check : checks ) {
-            if ( results.containsKey(check.getName() ) ) {
-                throw new IllegalArgumentException("check name is used twice: "+check.getClass().getName() );
+        FetchCache oldFetchCache= FetchCache.setCurrent( new FetchCache( context.getFetchCacheSize(), context.getHttpCache() ) );
+        Deadline deadline= Deadline.start( null, "server "+server, context.getServerTimeoutMillis() );
+        Deadline oldDeadline= Deadline.setCurrent(deadline);
+        try {
+            for ( Check check : checks ) {
+                if ( results.containsKey(check.getName() ) ) {
+                    throw new IllegalArgumentException("check name is used twice: "+check.getClass().getName() );
+                }
+                doCheck( context, results, check );
             }
-            doCheck( results, check );
+        } finally {
+            deadline.finish();
+            Deadline.setCurrent(oldDeadline);
+            FetchCache.setCurrent(oldFetchCache);
         }
         return results;
     }
@@ -253,27 +409,168 @@ public class HapiVerifier {
         return serverName;
     }
     
-    public static File serverFolder( URL server ) {
+    public static File serverFolder( File root, URL server ) {
         String serverName= serverFolderName( server );
         File serverRoot= new File( root, serverName );
         return serverRoot;
     }
     
-    private static File root;
+    /**
+     * the defaults for ROOT/config.properties.
+     */
+    private static final Properties CONFIG_DEFAULTS= new Properties();
+    static {
+        CONFIG_DEFAULTS.setProperty( "threads", "4" );
+        CONFIG_DEFAULTS.setProperty( "datasetThreads", "4" );
+        CONFIG_DEFAULTS.setProperty( "fetchCacheSize", "1000" );
+        CONFIG_DEFAULTS.setProperty( "httpCacheMegabytes", "100" );
+        CONFIG_DEFAULTS.setProperty( "connectTimeoutSeconds", "30" );
+        CONFIG_DEFAULTS.setProperty( "readTimeoutSeconds", "120" );
+        CONFIG_DEFAULTS.setProperty( "maxConnectionsPerHost", "8" );
+        CONFIG_DEFAULTS.setProperty( "serverTimeoutMinutes", "240" );
+        CONFIG_DEFAULTS.setProperty( "checkTimeoutMinutes", "120" );
+        CONFIG_DEFAULTS.setProperty( "datasetTimeoutMinutes", "10" );
+        CONFIG_DEFAULTS.setProperty( "historyFullDays", "31" );
+        CONFIG_DEFAULTS.setProperty( "historyMonths", "24" );
+        CONFIG_DEFAULTS.setProperty( "trendDays", "90" );
+        CONFIG_DEFAULTS.setProperty( "pageCacheMegabytes", "20" );
+        CONFIG_DEFAULTS.setProperty( "ttlMinutes", "1440" );
+        CONFIG_DEFAULTS.setProperty( "ttlMinutes.capabilities", "60" );
+        CONFIG_DEFAULTS.setProperty( "ttlMinutes.catalog", "360" );
+        CONFIG_DEFAULTS.setProperty( "ttlJitterPercent", "25" );
+        CONFIG_DEFAULTS.setProperty( "refreshMinutes", "10" );
+    }
+    
+    /**
+     * return the configuration read from ROOT/config.properties.  This file
+     * will be created with the default settings when it does not exist, and
+     * settings missing from the file take their default values.
+     * @param root the root of the testing area.
+     * @return the configuration
+     * @throws IOException 
+     */
+    public static Properties getConfig( File root ) throws IOException {
+        Properties config= new Properties(CONFIG_DEFAULTS);
+        File configFile= new File( root, "config.properties" );
+        if ( configFile.exists() ) {
+            try ( InputStream in= new FileInputStream(configFile) ) {
+                config.load(in);
+            }
+        } else if ( root.exists() ) {
+            try ( OutputStream out= new FileOutputStream(configFile) ) {
+                CONFIG_DEFAULTS.store( out, "HapiVerifier configuration" );
+            }
+        }
+        return config;
+    }
+    
+    /**
+     * return the integer setting from the configuration.
+     * @param config the configuration, see getConfig.
+     * @param name the name of the setting, like "threads"
+     * @return the value
+     * @throws IllegalArgumentException if the setting is not an integer.
+     */
+    public static int getConfigInt( Properties config, String name ) {
+        String s= config.getProperty(name);
+        try {
+            return Integer.parseInt(s.trim());
+        } catch ( NumberFormatException ex ) {
+            throw new IllegalArgumentException("config setting "+name+" should be an integer: "+s);
+        }
+    }
     
     /**
      * run through all servers and all tests, but using cached results where they
      * exist.  Typically a number of the cache files (*.json) will be deleted
-     * and the test is rerun.
+     * and the test is rerun.  The number of servers checked at once is 
+     * the "threads" setting of ROOT/config.properties.
      * @param root
      * @throws MalformedURLException
      * @throws FileNotFoundException
      * @throws IOException 
      */
     public static void doAllServers( File root ) throws MalformedURLException, FileNotFoundException, IOException {
+        doAllServers( root, (URL)null );
+    }
+    
+    /**
+     * run through the checks of one server, or of all servers when server
+     * is null, using cached results where they exist.  Only the server 
+     * named is locked and checked, so this does not wait for runs of other
+     * servers, while index.html still shows the results of all servers.
+     * @param root
+     * @param server null or the server, ending in "/hapi"
+     * @throws MalformedURLException
+     * @throws FileNotFoundException
+     * @throws IOException 
+     * @see #doAllServers(java.io.File, int, java.net.URL) 
+     */
+    public static void doAllServers( File root, URL server ) throws MalformedURLException, FileNotFoundException, IOException {
+        int threads= root.exists() ? getConfigInt( getConfig(root), "threads" ) : getConfigInt( CONFIG_DEFAULTS, "threads" );
+        doAllServers( root, threads, server );
+    }
+    
+    /**
+     * run through all servers and all tests, but using cached results where they
+     * exist and have not expired (see getExpiry).  Servers are checked concurrently, with each server's checks 
+     * run in sequence on one of the threads.  The report for each server is 
+     * written as soon as its checks are complete, rewriting only the pages 
+     * whose results changed (see ReportBuilder), and the summary index.html 
+     * is written from the stored results of all servers once they are done.  The "datasetThreads" setting of 
+     * ROOT/config.properties limits the number of datasets checked at once
+     * on each server, and "fetchCacheSize" is the number of JSON responses 
+     * kept while checking each server.  JSON responses are also kept between
+     * runs in ROOT/httpcache, up to "httpCacheMegabytes", and are only 
+     * downloaded again when they have changed.  Requests to the servers use
+     * the "connectTimeoutSeconds", "readTimeoutSeconds" and 
+     * "maxConnectionsPerHost" settings.  The time allowed for each server, 
+     * check and dataset is set by "serverTimeoutMinutes", "checkTimeoutMinutes"
+     * and "datasetTimeoutMinutes", with 0 meaning no limit.  Runs in this
+     * process may go at once, with each server checked by one run at a time,
+     * while a run in another process on the same root is refused (see 
+     * LockManager).  The listener set with setCheckListener is told of the
+     * checks of this run.
+     * @param root
+     * @param threads the number of servers to check at once.
+     * @throws MalformedURLException
+     * @throws FileNotFoundException
+     * @throws IOException 
+     */
+    public static void doAllServers( final File root, int threads ) throws MalformedURLException, FileNotFoundException, IOException {
+        doAllServers( root, threads, null );
+    }
+    
+    /**
+     * run through the checks of one server, or of all servers when server
+     * is null, as doAllServers(root,threads) does.
+     * @param root
+     * @param threads the number of servers to check at once.
+     * @param server null or the server, ending in "/hapi"
+     * @throws MalformedURLException
+     * @throws FileNotFoundException
+     * @throws IOException 
+     */
+    public static void doAllServers( final File root, int threads, URL server ) throws MalformedURLException, FileNotFoundException, IOException {
+        if ( !root.exists() ) {
+            if ( !root.mkdirs() ) {
+                throw new IllegalArgumentException("unable to mkdir "+root);
+            }
+        }
+        LockManager locks= LockManager.open(root);
+        locks.beginRun();
+        try {
+            runAllServers( root, threads, server );
+        } finally {
+            locks.endRun();
+        }
+    }
+    
+    /**
+     * the body of doAllServers, run while this process holds the run lock.
+     */
+    private static void runAllServers( final File root, int threads, URL only ) throws MalformedURLException, FileNotFoundException, IOException {
          
-        HapiVerifier.root= root;
-        
         long t0= System.currentTimeMillis();
                 
         if ( !root.exists() ) {
@@ -281,6 +578,11 @@ public class HapiVerifier {
                 throw new IllegalArgumentException("unable to mkdir "+root);
             }
         }
+        
+        Properties config= getConfig(root);
+        final RunContext context= new RunContext( root, config );
+        HttpFetcher.setTimeouts( getConfigInt( config, "connectTimeoutSeconds" )*1000, getConfigInt( config, "readTimeoutSeconds" )*1000 );
+        HttpFetcher.setMaxConnectionsPerHost( getConfigInt( config, "maxConnectionsPerHost" ) );
 
         File icon;
         icon= new File( root, "red.gif" );
@@ -290,12 +592,14 @@ public class HapiVerifier {
         icon= new File( root, "grey.gif" );
         if ( !icon.exists()) HapiUtil.transfer( HapiVerifier.class.getResourceAsStream("/resource/grey.gif"), new FileOutputStream(icon) );
         
-        List<URL> servers= getServers(root);
+        List<URL> allServers= getServers(root);
+        List<URL> servers= only==null ? allServers : Collections.singletonList(only);
         
-        File newFile= new File( root, "index.html.tmp" );
-        if ( newFile.exists() ) {
-            throw new IllegalArgumentException("unable to run, someone else is running");
-        }
+        final CheckListener listener= checkListener.get();
+        final LockManager locks= LockManager.open(root);
+        final long leaseMillis= context.getServerTimeoutMillis()>0 ? context.getServerTimeoutMillis() + 60000 : 0;
+        
+        File newFile= new File( root, "index.html." + Thread.currentThread().getId() + ".tmp" );
         
         try (PrintWriter out = new PrintWriter( newFile )) {
             
@@ -303,105 +607,217 @@ public class HapiVerifier {
             out.printf("<body><table border='1' >" );
             out.printf("<tr><td>Server</td>");
             
-            List<String> checkNames= getCheckNames(root);
+            final List<String> checkNames= getCheckNames(root);
             
             for ( String checkName: checkNames ) {
                 out.printf("<td>%s</td>", checkName );
             }
             out.printf("</tr>");
             
-            for ( URL server: servers ) {
-                
-                Map<String,CheckStatus> check= doChecks(root,server);
-                
-                String serverName= serverFolderName(server);
-                        
-                File serverRoot= serverFolder(server);
-                if ( !serverRoot.exists() ) {
-                    if ( !serverRoot.mkdirs() ) {
-                        throw new IllegalArgumentException("unable to mkdir "+serverRoot);
-                    }
-                }
-
-                out.printf("<tr><td><a href='%s'>%s</a></td>\n",serverName+".html",server);
-                
-                try (PrintWriter out3 = new PrintWriter( new File( root, serverName + ".html" ) )) {
-                    out3.println( "<h2>Server <a href="+server+">"+server +"</a></h2>");
-                    
-                    out3.println( "<table>");
-                    for ( Entry<String,CheckStatus> e: check.entrySet() ) {
-                        
-                        CheckStatus c= e.getValue();
-                        
-                        try (PrintWriter out2 = new PrintWriter( new File( serverRoot, e.getKey()+".html" ) )) {
-                            out2.println( "<h2>" );
-                            out2.println( "Test \""+e.getKey()+"\" on server "+ server );
-                            out2.println( "</h2>" );
-                            if ( c.getStatus()==0 ) {
-                                out2.println( "<img src='../blue.gif'>" );
-                            } else {
-                                out2.println( "<img src='../red.gif'>" );
-                            }
-                            out2.println( "Status Code=" + c.getStatus() + "<br>");
-                            out2.println( c.getMessage() + "<br>");
-                            out2.println( String.format( "<a href='../DoUpdate?test=%s&server=%s&action=go'>Rerun</a> test<br>", new Object[] { e.getKey(), server } ) );
-                            out2.println( "<br>" );
-                            out2.println( "<h2>Log output</h2>");
-                            out2.println( String.format( "<small>Test last run %s</small><br><br>", new java.util.Date(c.getTimeStamp()).toString() ) );
-                            out2.println( HapiUtil.makeHtml( c.getLog() ) );
-                            if ( c.getStatus()==0 ) {
-                                out2.println( "<img src='../blue.gif'>" );
-                            } else {
-                                out2.println( "<img src='../red.gif'>" );
+            ExecutorService pool= Executors.newFixedThreadPool( Math.max( 1, Math.min( threads, servers.size() ) ) );
+            List<Future<Map<String,CheckStatus>>> futures= new ArrayList<>();
+            try {
+                for ( final URL server: servers ) {
+                    futures.add( pool.submit( new Callable<Map<String,CheckStatus>>() {
+                        @Override
+                        public Map<String, CheckStatus> call() throws Exception {
+                            CheckListener oldListener= setCheckListener(listener);
+                            LockManager.Lease lease= locks.acquire( serverFolderName(server), leaseMillis );
+                            try {
+                                Map<String,CheckStatus> check= doChecks( context, server, checkNames );
+                                ReportBuilder.open(root).writeServerReport( server, check );
+                                return check;
+                            } finally {
+                                lease.close();
+                                setCheckListener(oldListener);
                             }
-                            out2.println( c.getMessage() + "<br>");
-                            out2.println( "<br>Return to <a href='../index.html'>summary</a><br><br><br>\n");
                         }
-                        
-                        String ball= c.getStatus()==0 ? "blue" : "red";
-                        out3.printf( "<tr><td><a href=\"%s/%s.html\"><img src='%s.gif'>%s</a></td><td>%s</td></tr>\n", serverName, e.getKey(), ball, e.getKey(), c.getMessage() );
-                        out.printf("<td><a href=\"%s/%s.html\"><img src='%s.gif'></a></td>", serverName, e.getKey(), ball );
-                        
+                    }) );
+                }
+            
+                for ( Future<Map<String,CheckStatus>> future: futures ) {
+                    getResult( future );
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            
+            ResultStore store= getResultStore(root);
+            for ( URL server: allServers ) {
+                String serverName= serverFolderName(server);
+                
+                out.printf("<tr><td><a href='%s'>%s</a></td>\n",serverName+".html",server);
+                for ( String checkName: checkNames ) {
+                    CheckStatus c= store.getSummary( serverName, checkName );
+                    if ( c==null ) {
+                        out.printf("<td></td>");
+                    } else {
+                        out.printf("<td><a href=\"%s/%s.html\"><img src='%s.gif'></a></td>", serverName, checkName, getBall(c) );
                     }
-                    out.printf("</tr>\n" );
-                    out3.println("</table>");
                 }
+                out.printf("</tr>\n" );
             }
             out.println("</table>");
             
+            out.println("See the <a href=\"trends.html\">trends</a> of the results over time.<br>");
             out.println("Return to <a href=\"index.jsp\">home</a><br><br>\n");
             
-            out.println("<small>data is stored in "+HapiVerifier.root+"<br></small>\n");
+            out.println("<small>data is stored in "+root+"<br></small>\n");
             out.println("<small>Complete test suite calculated in "+ String.format( "%.2f", (System.currentTimeMillis()-t0)/60000. ) + " minutes.</small>" );
             out.println("<small>Last update "+new java.util.Date()+"</small>");
             out.println("</body>");
         }
-        if ( !newFile.renameTo( new File( root, "index.html" ) ) ) {
-            throw new IllegalArgumentException("unable to rename file to index.html");
+        Files.move( newFile.toPath(), new File( root, "index.html" ).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        HapiUtil.writeGzipCopy( new File( root, "index.html" ) );
+        
+        ResultHistory history= ResultHistory.open(root);
+        history.maintain( getConfigInt( config, "historyFullDays" ), getConfigInt( config, "historyMonths" ) );
+        writeTrendReport( root, getConfigInt( config, "trendDays" ) );
+    }
+    
+    /**
+     * the summary of the history of one check of one server, see writeTrendReport.
+     */
+    private static class Trend {
+        byte[] days;
+        int count;
+        int passed;
+        long totalDuration;
+        long maxDuration;
+        long totalBytes;
+        int lastStatus= -1;
+        long lastChange;
+        int changes;
+    }
+    
+    /**
+     * return 0 for success, 1 for timeout and 2 for failure, so the worst
+     * result of a day can be found.
+     */
+    private static byte severity( int status ) {
+        switch ( status ) {
+            case 0:
+                return 0;
+            case CheckStatus.TIMEOUT:
+                return 1;
+            default:
+                return 2;
         }
     }
-       
-    private static String makeHtml( String raw ) {
-        StringBuilder builder= new StringBuilder();
-        String[] ss= raw.split("\n");
-        Pattern url= Pattern.compile("(http|ftp|https):\\/\\/[\\w\\-_]+(\\.[\\w\\-_]+)+([\\w\\-\\.,@?^=%&amp;:/~\\+#]*[\\w\\-\\@?^=%&amp;/~\\+#])?");
+    
+    /**
+     * write ROOT/trends.html, showing for each check of each server the 
+     * worst result of each day, the pass rate, the time taken, the bytes 
+     * read and the last change of status, over the last days.  The 
+     * history is read one result at a time, so only the summary of each
+     * check is held in memory.
+     * @param root testing area
+     * @param ndays the number of days shown.
+     * @throws IOException 
+     */
+    public static void writeTrendReport( File root, final int ndays ) throws IOException {
+        final long end= System.currentTimeMillis();
+        final long start= end - ndays * 86400000L;
+        final Map<String,Trend> trends= new TreeMap<>();
+        ResultHistory.open(root).query( null, null, start, end, new ResultHistory.Visitor() {
+            @Override
+            public void sample(String server, String check, long timeStamp, int status, int messageHash, long durationMillis, long bytes) {
+                String key= server + "\t" + check;
+                Trend t= trends.get(key);
+                if ( t==null ) {
+                    t= new Trend();
+                    t.days= new byte[ndays];
+                    Arrays.fill( t.days, (byte)-1 );
+                    trends.put( key, t );
+                }
+                int day= (int)( ( timeStamp - start ) / 86400000L );
+                if ( day>=0 && day<ndays ) {
+                    t.days[day]= (byte)Math.max( t.days[day], severity(status) );
+                }
+                t.count++;
+                if ( status==0 ) t.passed++;
+                t.totalDuration+= durationMillis;
+                t.maxDuration= Math.max( t.maxDuration, durationMillis );
+                t.totalBytes+= bytes;
+                if ( t.lastStatus!=-1 && t.lastStatus!=status ) {
+                    t.lastChange= timeStamp;
+                    t.changes++;
+                }
+                t.lastStatus= status;
+            }
+        });
         
-        for ( String s: ss ) {
-            Matcher m= url.matcher(s);
-            int more= 0;
-            while ( m.find() ) {
-                builder.append( s.substring(0,m.start()) );
-                more= m.end();
-                String surl= s.substring(m.start(),more);
-                builder.append("<a href='").append(surl).append("'>").append(surl.replaceAll("\\&", "&amp;") ).append("</a>");
+        File newFile= new File( root, "trends.html." + Thread.currentThread().getId() + ".tmp" );
+        try ( PrintWriter out= new PrintWriter( newFile ) ) {
+            out.println("<html><head><style>");
+            out.println("span.d { display:inline-block; width:4px; height:14px; margin-right:1px; }");
+            out.println("span.s0 { background:#3366cc; } span.s1 { background:#999999; } span.s2 { background:#cc3333; } span.sn { background:#eeeeee; }");
+            out.println("</style></head>");
+            out.println("<body>");
+            out.printf("<h2>Results over the last %d days</h2>\n", ndays );
+            out.println("<small>Each mark is the worst result of a day: blue passed, grey timed out, red failed.</small><br><br>");
+            out.println("<table border='1'>");
+            out.println("<tr><td>Server</td><td>Check</td><td>Days</td><td>Passed</td><td>Runs</td><td>Mean seconds</td><td>Max seconds</td><td>Mean KB</td><td>Changes</td><td>Last change</td></tr>");
+            for ( Entry<String,Trend> e: trends.entrySet() ) {
+                String[] ss= e.getKey().split("\t");
+                Trend t= e.getValue();
+                out.printf( "<tr><td><a href='%s.html'>%s</a></td><td><a href='%s/%s.html'>%s</a></td><td>", ss[0], ss[0], ss[0], ss[1], ss[1] );
+                for ( byte b: t.days ) {
+                    out.print( b==-1 ? "<span class='d sn'></span>" : "<span class='d s"+b+"'></span>" );
+                }
+                out.printf( Locale.US, "</td><td>%.1f%%</td><td>%d</td><td>%.1f</td><td>%.1f</td><td>%.1f</td><td>%d</td><td>%s</td></tr>\n",
+                        100. * t.passed / t.count, t.count, t.totalDuration / 1000. / t.count, t.maxDuration / 1000., t.totalBytes / 1000. / t.count,
+                        t.changes, t.changes==0 ? "" : new java.util.Date(t.lastChange).toString() );
+            }
+            out.println("</table>");
+            out.println("<br>Return to <a href='index.html'>summary</a><br>");
+            out.println("<small>Last update "+new java.util.Date()+"</small>");
+            out.println("</body></html>");
+        }
+        Files.move( newFile.toPath(), new File( root, "trends.html" ).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        HapiUtil.writeGzipCopy( new File( root, "trends.html" ) );
+    }
+    
+    /**
+     * wait for the checks of one server to complete, unwrapping any exception
+     * thrown while they were run.
+     * @param future the future result of doChecks.
+     * @return the map from check name to CheckStatus
+     * @throws IOException 
+     */
+    private static Map<String,CheckStatus> getResult( Future<Map<String,CheckStatus>> future ) throws IOException {
+        try {
+            return future.get();
+        } catch ( InterruptedException ex ) {
+            throw new InterruptedIOException("interrupted while waiting for checks");
+        } catch ( ExecutionException ex ) {
+            Throwable cause= ex.getCause();
+            if ( cause instanceof IOException ) {
+                throw (IOException)cause;
+            } else if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            } else {
+                throw new IOException(cause);
             }
-            builder.append( s.substring(more) ); // I know there's a matcher field for this, just can't find it...
-            builder.append( "<br>\n");
         }
-        
-        return builder.toString();
     }
-            
+    
+    /**
+     * return the name of the icon for the status: "blue" for success, "grey"
+     * for timeout, and "red" for failure.
+     * @param c the status
+     * @return the icon name
+     */
+    static String getBall( CheckStatus c ) {
+        switch ( c.getStatus() ) {
+            case 0:
+                return "blue";
+            case CheckStatus.TIMEOUT:
+                return "grey";
+            default:
+                return "red";
+        }
+    }
     
     /**
      * reset the test caches, limiting to one server when this is non-null, or
@@ -412,40 +828,26 @@ public class HapiVerifier {
      */
     public static void resetCachedResults( File root, URL server, String test ) {
         if ( !root.exists() ) return;
-        
-        File[] ff= root.listFiles();
-        
-        String sserver=null;
-        if ( server!=null ) {
-            sserver= serverFolderName(server);
-        }
-        for ( File f: ff ) {
-            if ( f.isDirectory() ) {
-                if ( sserver==null || f.getName().equals(sserver) ) {
-                    File [] ff1= f.listFiles();
-                    for ( File f1: ff1 ) {
-                        if ( f1.getName().endsWith(".json") ) {
-                            if ( test==null || f1.getName().equals(test+".json") ) {
-                                if ( !f1.delete() ) {
-                                    throw new IllegalArgumentException("unable to delete file: "+f1);
-                                }
-                            }
-                        }
-                    }
-                }
-                
-            }
+        try {
+            getResultStore(root).invalidate( server==null ? null : serverFolderName(server), test );
+        } catch ( IOException ex ) {
+            throw new IllegalArgumentException("unable to reset results in "+root, ex);
         }
     }
     
     /**
-     * check to see if someone else is running.
+     * check to see if someone else is running, in this process or another.
      * @param root
      * @return 
+     * @see LockManager#isRunning() 
      */
     public static boolean isRunning( File root ) {
-        File newFile= new File( root, "index.html.tmp" );
-        return newFile.exists();
+        if ( !root.exists() ) return false;
+        try {
+            return LockManager.open(root).isRunning();
+        } catch ( IOException ex ) {
+            return false;
+        }
     }
     
     /**
@@ -461,16 +863,16 @@ public class HapiVerifier {
     public static void doAllServers( final PrintStream out, File root, String sserver, String test ) throws MalformedURLException, FileNotFoundException, IOException {
         URL server= sserver==null?null:new URL(sserver);
         resetCachedResults( root,server,test);
-        logger.addHandler( new Handler() {
+        Handler h= new Handler() {
             @Override
             public void publish(LogRecord record) {
-                SimpleFormatter formatter= new SimpleFormatter();
-                String s= formatter.formatMessage(record);
+                String s= LogCapture.formatMessage(record);
                 if ( s==null ) s= "<null>";
-                out.append( HapiUtil.makeHtml(s) );
-
-                out.append("<br>");
-                out.flush();
+                synchronized ( out ) {
+                    out.append( HtmlLogRenderer.render(s) );
+                    out.append("<br>");
+                    out.flush();
+                }
             }
 
             @Override
@@ -480,8 +882,13 @@ public class HapiVerifier {
             @Override
             public void close() throws SecurityException {
             }
-        });
-        doAllServers(root);
+        };
+        logger.addHandler(h);
+        try {
+            doAllServers(root);
+        } finally {
+            logger.removeHandler(h);
+        }
         
     }
     
@@ -490,6 +897,8 @@ public class HapiVerifier {
      * --server=http://jfaden.net/HapiServerDemo/hapi 
      * or one test with:
      * --test==info
+     * and the number of servers checked at once with:
+     * --threads=8
      * @param args
      * @throws MalformedURLException
      * @throws FileNotFoundException
@@ -499,15 +908,21 @@ public class HapiVerifier {
         File r= new File("/tmp/hapiVerifier/" );
         String sserver=null;
         String test=null;
+        int threads= -1;
         //args= new String[] { "--server=http://jfaden.net/HapiServerDemo/hapi", "--test=info" };
         for ( String s:args ) {
             if ( s.startsWith("--server=") ) sserver=s.substring(9);
             if ( s.startsWith("--test=") ) test=s.substring(7);
             if ( s.startsWith("--root=") ) r= new File(s.substring(7));
+            if ( s.startsWith("--threads=") ) threads= Integer.parseInt(s.substring(10));
         }
         URL server= sserver==null?null:new URL(sserver);
         resetCachedResults(r,server,test);
         
-        doAllServers(r);
+        if ( threads==-1 ) {
+            doAllServers(r);
+        } else {
+            doAllServers(r,threads);
+        }
     }
 }
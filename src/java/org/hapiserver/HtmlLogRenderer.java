@@ -0,0 +1,296 @@
+package org.hapiserver;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * renders a check's log as HTML, reading the log a buffer at a time and
+ * writing the HTML as it goes, so that the memory used is the same however
+ * long the log is.  Each line ends with &lt;br&gt;, and URLs become links,
+ * with &amp; escaped in the link text.  The rest of the log is written as
+ * it is, since checks log HTML like the red ball image.
+ *
+ * URLs are found by looking at each character once, finding what the
+ * expression used before found:
+ * <pre>(http|ftp|https)://[\w\-_]+(\.[\w\-_]+)+([\w\-\.,@?^=%&amp;amp;:/~\+#]*[\w\-\@?^=%&amp;amp;/~\+#])?</pre>
+ * Only the characters of a URL which is still being read are held.
+ * @author jbf
+ */
+public class HtmlLogRenderer {
+
+    private static final int TEXT= 0;
+    private static final int SCHEME= 1;
+    private static final int HOST= 2;
+    private static final int DOT= 3;
+    private static final int PATH= 4;
+
+    private static final String[] SCHEMES= { "http://", "https://", "ftp://" };
+
+    private final Reader in;
+    private final Writer out;
+
+    private final char[] inBuffer= new char[8192];
+    private int inPos= 0;
+    private int inLimit= 0;
+
+    private final char[] outBuffer= new char[8192];
+    private int outPos= 0;
+
+    /**
+     * characters which have been read but must be looked at again.
+     */
+    private final StringBuilder again= new StringBuilder();
+    private int againPos= 0;
+
+    /**
+     * the characters of the URL being read.
+     */
+    private final StringBuilder pending= new StringBuilder();
+    private int state= TEXT;
+    private int hostChars= 0;
+    private int urlEnd= 0;
+
+    private boolean anyChars= false;
+    private boolean lineHasContent= false;
+    private int emptyLines= 0;
+
+    private HtmlLogRenderer( Reader in, Writer out ) {
+        this.in= in;
+        this.out= out;
+    }
+
+    /**
+     * render the log as HTML.
+     * @param in the log, which is read to the end but not closed.
+     * @param out the HTML is written here, and this is not flushed or closed.
+     * @throws IOException
+     */
+    public static void render( Reader in, Writer out ) throws IOException {
+        new HtmlLogRenderer( in, out ).run();
+    }
+
+    /**
+     * render the log as HTML, for logs which are already in memory.
+     * @param log the log
+     * @return the HTML
+     */
+    public static String render( String log ) {
+        StringWriter out= new StringWriter( log.length() + log.length()/4 );
+        try {
+            render( new StringReader(log), out );
+        } catch ( IOException ex ) {
+            throw new IllegalStateException(ex); // StringReader and StringWriter do not throw.
+        }
+        return out.toString();
+    }
+
+    private int read() throws IOException {
+        if ( againPos<again.length() ) {
+            char c= again.charAt(againPos++);
+            if ( againPos==again.length() ) {
+                again.setLength(0);
+                againPos= 0;
+            }
+            return c;
+        }
+        while ( inPos==inLimit ) {
+            int n= in.read( inBuffer );
+            if ( n==-1 ) return -1;
+            inPos= 0;
+            inLimit= n;
+        }
+        return inBuffer[inPos++];
+    }
+
+    private void run() throws IOException {
+        while ( true ) {
+            int c= read();
+            if ( c==-1 ) {
+                if ( state==TEXT ) {
+                    break;
+                } else if ( state==PATH ) {
+                    link();
+                } else {
+                    fail();
+                }
+            } else {
+                anyChars= true;
+                next( (char)c );
+            }
+        }
+        if ( lineHasContent || !anyChars ) {
+            write( "<br>\n" );
+        }
+        out.write( outBuffer, 0, outPos );
+        outPos= 0;
+    }
+
+    private void next( char c ) throws IOException {
+        switch ( state ) {
+            case TEXT:
+                if ( c=='\n' ) {
+                    endLine();
+                } else {
+                    startLine();
+                    if ( c=='h' || c=='f' ) {
+                        pending.append(c);
+                        state= SCHEME;
+                    } else {
+                        write(c);
+                    }
+                }
+                break;
+            case SCHEME:
+                pending.append(c);
+                int scheme= schemeMatch();
+                if ( scheme==-1 ) {
+                    fail();
+                } else if ( pending.length()==SCHEMES[scheme].length() ) {
+                    hostChars= 0;
+                    state= HOST;
+                }
+                break;
+            case HOST:
+                pending.append(c);
+                if ( isHostChar(c) ) {
+                    hostChars++;
+                } else if ( c=='.' && hostChars>0 ) {
+                    state= DOT;
+                } else {
+                    fail();
+                }
+                break;
+            case DOT:
+                pending.append(c);
+                if ( isHostChar(c) ) {
+                    urlEnd= pending.length();
+                    state= PATH;
+                } else {
+                    fail();
+                }
+                break;
+            default: // PATH
+                if ( isPathChar(c) ) {
+                    pending.append(c);
+                    if ( isLastChar(c) ) urlEnd= pending.length();
+                } else {
+                    link();
+                    next(c);
+                }
+        }
+    }
+
+    /**
+     * return the index of the scheme which starts with the pending characters, or -1.
+     */
+    private int schemeMatch() {
+        for ( int i=0; i<SCHEMES.length; i++ ) {
+            String s= SCHEMES[i];
+            if ( pending.length()<=s.length() ) {
+                boolean match= true;
+                for ( int j=0; j<pending.length(); j++ ) {
+                    if ( pending.charAt(j)!=s.charAt(j) ) {
+                        match= false;
+                        break;
+                    }
+                }
+                if ( match ) return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * no URL starts with the first pending character, so write it and look
+     * at the rest again, since a URL may start within them.
+     */
+    private void fail() throws IOException {
+        write( pending.charAt(0) );
+        again.delete( 0, againPos );
+        againPos= 0;
+        again.insert( 0, pending, 1, pending.length() );
+        pending.setLength(0);
+        state= TEXT;
+    }
+
+    /**
+     * write the URL which has been read as a link.  Characters read after
+     * the end of the URL can only be . , or :, so they are written as text.
+     */
+    private void link() throws IOException {
+        write( "<a href='" );
+        write( pending, 0, urlEnd );
+        write( "'>" );
+        for ( int i=0; i<urlEnd; i++ ) {
+            char c= pending.charAt(i);
+            if ( c=='&' ) {
+                write( "&amp;" );
+            } else {
+                write( c );
+            }
+        }
+        write( "</a>" );
+        write( pending, urlEnd, pending.length() );
+        pending.setLength(0);
+        state= TEXT;
+    }
+
+    /**
+     * empty lines at the end of the log are dropped, so they are only
+     * written once another line has content.
+     */
+    private void startLine() throws IOException {
+        if ( !lineHasContent ) {
+            for ( int i=0; i<emptyLines; i++ ) write( "<br>\n" );
+            emptyLines= 0;
+            lineHasContent= true;
+        }
+    }
+
+    private void endLine() throws IOException {
+        if ( lineHasContent ) {
+            write( "<br>\n" );
+            lineHasContent= false;
+        } else {
+            emptyLines++;
+        }
+    }
+
+    private static boolean isHostChar( char c ) {
+        return ( c>='a' && c<='z' ) || ( c>='A' && c<='Z' ) || ( c>='0' && c<='9' ) || c=='_' || c=='-';
+    }
+
+    private static boolean isLastChar( char c ) {
+        if ( isHostChar(c) ) return true;
+        switch ( c ) {
+            case '@': case '?': case '^': case '=': case '%': case '&': case ';': case '/': case '~': case '+': case '#':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isPathChar( char c ) {
+        return isLastChar(c) || c=='.' || c==',' || c==':';
+    }
+
+    private void write( char c ) throws IOException {
+        if ( outPos==outBuffer.length ) {
+            out.write( outBuffer, 0, outPos );
+            outPos= 0;
+        }
+        outBuffer[outPos++]= c;
+    }
+
+    private void write( CharSequence s ) throws IOException {
+        write( s, 0, s.length() );
+    }
+
+    private void write( CharSequence s, int start, int end ) throws IOException {
+        for ( int i=start; i<end; i++ ) write( s.charAt(i) );
+    }
+
+}
@@ -0,0 +1,224 @@
+package org.hapiserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * keeps the responses of the server on disk between runs, along with the
+ * ETag and Last-Modified validators sent with them.  When a response is
+ * requested again, a conditional GET is sent, and when the server replies
+ * "304 Not Modified" the copy on disk is used.  When the total size of
+ * the responses kept exceeds the limit, the least recently used are
+ * deleted.
+ *
+ * Each response is kept in two files named after the SHA-1 hash of the
+ * URL: &lt;hash&gt;.body holds the response and &lt;hash&gt;.meta holds the
+ * URL and validators.  There is one HttpCache for each directory, see open,
+ * so that runs going at once share the total and its limit.
+ * @author jbf
+ */
+public class HttpCache {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static final Charset UTF8= Charset.forName("UTF-8");
+
+    private static final ConcurrentHashMap<File,HttpCache> instances= new ConcurrentHashMap<>();
+
+    private final File dir;
+    private long maxBytes;
+    private long totalBytes;
+
+    /**
+     * return the cache for the directory, creating it when this is the
+     * first use of the directory by this process.
+     * @param dir the directory holding the responses, which is created if needed.
+     * @param maxBytes the total size of the responses kept, which replaces 
+     * the limit of the cache already open.
+     * @return the cache
+     * @throws IOException
+     */
+    public static HttpCache open( File dir, long maxBytes ) throws IOException {
+        File f= dir.getCanonicalFile();
+        HttpCache result= instances.get(f);
+        if ( result==null ) {
+            synchronized ( instances ) {
+                result= instances.get(f);
+                if ( result==null ) {
+                    result= new HttpCache( f, maxBytes );
+                    instances.put( f, result );
+                }
+            }
+        }
+        synchronized ( result ) {
+            result.maxBytes= maxBytes;
+        }
+        return result;
+    }
+
+    private HttpCache( File dir, long maxBytes ) throws IOException {
+        if ( !dir.exists() && !dir.mkdirs() ) {
+            throw new IOException("unable to mkdir "+dir);
+        }
+        this.dir= dir;
+        this.maxBytes= maxBytes;
+        long total= 0;
+        for ( File f: listBodies() ) {
+            total+= f.length();
+        }
+        this.totalBytes= total;
+    }
+
+    private File[] listBodies() {
+        File[] ff= dir.listFiles();
+        if ( ff==null ) return new File[0];
+        int n=0;
+        for ( File f: ff ) {
+            if ( f.getName().endsWith(".body") ) ff[n++]= f;
+        }
+        return Arrays.copyOf( ff, n );
+    }
+
+    private static String hash( String url ) {
+        try {
+            MessageDigest md= MessageDigest.getInstance("SHA-1");
+            byte[] digest= md.digest( url.getBytes(UTF8) );
+            StringBuilder b= new StringBuilder(40);
+            for ( byte d: digest ) {
+                b.append( String.format( "%02x", d & 0xFF ) );
+            }
+            return b.toString();
+        } catch ( NoSuchAlgorithmException ex ) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * return the response for the URL, using the copy on disk when the
+     * server says it has not changed.
+     * @param url an http or https URL
+     * @return the response body
+     * @throws IOException
+     */
+    public byte[] get( URL url ) throws IOException {
+        String key= hash( url.toString() );
+        File body= new File( dir, key + ".body" );
+        File meta= new File( dir, key + ".meta" );
+
+        Properties validators= null;
+        if ( body.exists() && meta.exists() ) {
+            validators= new Properties();
+            try ( InputStream in= new FileInputStream(meta) ) {
+                validators.load(in);
+            }
+            if ( !url.toString().equals( validators.getProperty("url") ) ) {
+                validators= null;
+            }
+        }
+
+        URLConnection connection= HttpFetcher.openConnection(url);
+        if ( validators!=null ) {
+            String etag= validators.getProperty("ETag");
+            if ( etag!=null ) connection.setRequestProperty( "If-None-Match", etag );
+            String lastModified= validators.getProperty("Last-Modified");
+            if ( lastModified!=null ) connection.setRequestProperty( "If-Modified-Since", lastModified );
+        }
+
+        if ( validators!=null && connection instanceof HttpURLConnection
+                && ((HttpURLConnection)connection).getResponseCode()==HttpURLConnection.HTTP_NOT_MODIFIED ) {
+            HttpFetcher.getInputStream(connection).close();
+            byte[] result= HapiUtil.readFully( new FileInputStream(body) );
+            if ( !body.setLastModified( System.currentTimeMillis() ) ) {
+                logger.log(Level.FINE, "unable to touch {0}", body);
+            }
+            logger.log(Level.INFO, "not modified, using copy kept in {0}", body);
+            return result;
+        }
+
+        byte[] result= HapiUtil.readFully( HttpFetcher.getInputStream(connection) );
+
+        String etag= connection.getHeaderField("ETag");
+        String lastModified= connection.getHeaderField("Last-Modified");
+        if ( etag!=null || lastModified!=null ) {
+            Properties p= new Properties();
+            p.setProperty( "url", url.toString() );
+            if ( etag!=null ) p.setProperty( "ETag", etag );
+            if ( lastModified!=null ) p.setProperty( "Last-Modified", lastModified );
+            store( body, meta, result, p );
+        }
+        return result;
+    }
+
+    /**
+     * write the response and its validators, replacing any previous copy.
+     */
+    private void store( File body, File meta, byte[] content, Properties validators ) throws IOException {
+        long oldLength= body.exists() ? body.length() : 0;
+        File tmp= new File( dir, body.getName() + "." + Thread.currentThread().getId() + ".tmp" );
+        try ( OutputStream out= new FileOutputStream(tmp) ) {
+            out.write(content);
+        }
+        if ( !tmp.renameTo(body) ) {
+            if ( !tmp.delete() ) logger.log(Level.FINE, "unable to delete {0}", tmp);
+            throw new IOException("unable to rename to "+body);
+        }
+        try ( OutputStream out= new FileOutputStream(meta) ) {
+            validators.store( out, null );
+        }
+        synchronized ( this ) {
+            totalBytes+= content.length - oldLength;
+            if ( totalBytes>maxBytes ) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * delete the least recently used responses until the total is 90% of
+     * the limit.
+     */
+    private void evict() {
+        File[] bodies= listBodies();
+        final long[] lastModified= new long[bodies.length];
+        Integer[] order= new Integer[bodies.length];
+        for ( int i=0; i<bodies.length; i++ ) {
+            lastModified[i]= bodies[i].lastModified();
+            order[i]= i;
+        }
+        Arrays.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare( lastModified[o1], lastModified[o2] );
+            }
+        });
+        long target= maxBytes * 9 / 10;
+        for ( Integer i: order ) {
+            if ( totalBytes<=target ) break;
+            File body= bodies[i];
+            long length= body.length();
+            String name= body.getName();
+            File meta= new File( dir, name.substring(0,name.length()-5) + ".meta" );
+            if ( body.delete() ) {
+                totalBytes-= length;
+                if ( !meta.delete() ) logger.log(Level.FINE, "unable to delete {0}", meta);
+            }
+        }
+    }
+
+}
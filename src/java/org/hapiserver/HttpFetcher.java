@@ -0,0 +1,212 @@
+package org.hapiserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * all requests to the servers go through here, so that they share the same
+ * settings.  Each request has connect and read timeouts, so that a server
+ * which stops responding cannot hold up a run forever, and asks for gzip or
+ * deflate compression, which is undone here.  Connections are kept alive
+ * and reused for the next request to the same host, as long as each stream
+ * is closed, and error responses are read out so their connections can
+ * be reused as well.
+ *
+ * Connections are registered with the Deadline of the current thread,
+ * which disconnects them when its budget runs out, and the bytes read are
+ * counted against the deadline.
+ *
+ * This uses HttpURLConnection, since the code is compiled for Java 7, so
+ * requests are HTTP/1.1.
+ * @author jbf
+ */
+public class HttpFetcher {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static volatile int connectTimeoutMillis= 30000;
+    private static volatile int readTimeoutMillis= 120000;
+
+    /**
+     * set the timeouts used for each request.
+     * @param connectTimeoutMillis time allowed to connect to the server, in milliseconds.
+     * @param readTimeoutMillis time allowed waiting for each read, in milliseconds.
+     */
+    public static void setTimeouts( int connectTimeoutMillis, int readTimeoutMillis ) {
+        HttpFetcher.connectTimeoutMillis= connectTimeoutMillis;
+        HttpFetcher.readTimeoutMillis= readTimeoutMillis;
+    }
+
+    /**
+     * set the number of idle connections kept open to each host.  This must
+     * be called before the first request, since Java reads the setting
+     * "http.maxConnections" just once.
+     * @param maxConnections the number of connections
+     */
+    public static void setMaxConnectionsPerHost( int maxConnections ) {
+        if ( System.getProperty("http.maxConnections")==null ) {
+            System.setProperty( "http.maxConnections", String.valueOf(maxConnections) );
+        }
+    }
+
+    /**
+     * open a connection to the URL, with the timeouts and compression set.
+     * @param url
+     * @return the connection, which is not yet connected.
+     * @throws IOException
+     */
+    public static URLConnection openConnection( URL url ) throws IOException {
+        Deadline deadline= Deadline.getCurrent();
+        if ( deadline!=null ) deadline.check();
+        URLConnection connection= url.openConnection();
+        connection.setConnectTimeout( connectTimeoutMillis );
+        connection.setReadTimeout( readTimeoutMillis );
+        if ( connection instanceof HttpURLConnection ) {
+            connection.setRequestProperty( "Accept-Encoding", "gzip, deflate" );
+            connection.setRequestProperty( "User-Agent", "HapiVerifier" );
+            if ( deadline!=null ) {
+                deadline.register( (HttpURLConnection)connection );
+                try {
+                    deadline.check();
+                } catch ( DeadlineExceededException ex ) {
+                    deadline.unregister( (HttpURLConnection)connection );
+                    throw ex;
+                }
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * return the response stream of the connection, with any compression
+     * undone.  When the server responds with an error, the error response
+     * is read and an IOException is thrown.
+     * @param connection the connection, see openConnection.
+     * @return the stream, which must be closed.
+     * @throws IOException
+     */
+    public static InputStream getInputStream( URLConnection connection ) throws IOException {
+        Deadline deadline= Deadline.getCurrent();
+        try {
+            return getInputStream( connection, deadline );
+        } catch ( IOException ex ) {
+            if ( deadline!=null && connection instanceof HttpURLConnection ) {
+                deadline.unregister( (HttpURLConnection)connection );
+                deadline.check(); // report the timeout rather than the disconnect.
+            }
+            throw ex;
+        }
+    }
+    
+    private static InputStream getInputStream( URLConnection connection, Deadline deadline ) throws IOException {
+        if ( connection instanceof HttpURLConnection ) {
+            HttpURLConnection httpConnection= (HttpURLConnection)connection;
+            int code= httpConnection.getResponseCode();
+            if ( code>=400 ) {
+                InputStream err= httpConnection.getErrorStream();
+                if ( err!=null ) {
+                    try {
+                        byte[] buffer= new byte[4096];
+                        while ( err.read(buffer)!=-1 ) {
+                            // read out the error, so the connection can be reused.
+                        }
+                    } finally {
+                        err.close();
+                    }
+                }
+                throw new IOException( "Server returned HTTP response code: " + code + " for URL: " + connection.getURL() );
+            }
+        }
+        InputStream in= connection.getInputStream();
+        if ( deadline!=null && connection instanceof HttpURLConnection ) {
+            in= new DeadlineInputStream( in, deadline, (HttpURLConnection)connection );
+        }
+        String encoding= connection.getContentEncoding();
+        if ( encoding!=null ) {
+            encoding= encoding.trim().toLowerCase();
+            switch (encoding) {
+                case "gzip":
+                case "x-gzip":
+                    in= new GZIPInputStream(in);
+                    break;
+                case "deflate":
+                    in= new InflaterInputStream(in);
+                    break;
+                default:
+                    logger.log(Level.FINE, "unrecognized content encoding {0}", encoding);
+            }
+        }
+        return in;
+    }
+
+    /**
+     * open the stream for the URL, like URL.openStream but with the
+     * timeouts and compression set.
+     * @param url
+     * @return the stream, which must be closed.
+     * @throws IOException
+     */
+    public static InputStream openStream( URL url ) throws IOException {
+        return getInputStream( openConnection(url) );
+    }
+
+    /**
+     * counts the bytes read against the deadline, and fails once its 
+     * budget has run out.
+     */
+    private static class DeadlineInputStream extends FilterInputStream {
+        
+        private final Deadline deadline;
+        private final HttpURLConnection connection;
+        
+        DeadlineInputStream( InputStream in, Deadline deadline, HttpURLConnection connection ) {
+            super(in);
+            this.deadline= deadline;
+            this.connection= connection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            deadline.check();
+            int b;
+            try {
+                b= super.read();
+            } catch ( IOException ex ) {
+                deadline.check();
+                throw ex;
+            }
+            if ( b>-1 ) deadline.addBytesRead(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            deadline.check();
+            int n;
+            try {
+                n= super.read(b, off, len);
+            } catch ( IOException ex ) {
+                deadline.check();
+                throw ex;
+            }
+            if ( n>0 ) deadline.addBytesRead(n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            deadline.unregister(connection);
+            super.close();
+        }
+        
+    }
+
+}
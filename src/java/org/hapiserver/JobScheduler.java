@@ -0,0 +1,565 @@
+package org.hapiserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * runs the checks in the background for the web application, so that no
+ * request waits for a run.  Each run is a Job with an ID, which is
+ * returned as soon as it is submitted, and the Job records an event as
+ * each check completes, which can be polled for (see Job.toJSON) or
+ * followed as they happen (see Job.subscribe).  Up to RUNNERS jobs run at
+ * once, so a rerun of one server need not wait for a run of all servers;
+ * each server is checked by one job at a time, see LockManager.  The most
+ * recent finished jobs are remembered, up to MAX_JOBS, along with all
+ * the jobs which are queued or running.
+ *
+ * Requests are coalesced: a request for the same server and check as a
+ * job which is queued or running joins that job and gets its result,
+ * rather than running again and racing it on the same results.  A request
+ * which is covered by a job which is queued but not yet started, such as
+ * one server when all servers are queued, joins that job as well.
+ *
+ * A refresh job (see submitRefresh) resets nothing, and so only reruns 
+ * the checks whose results have expired.
+ * @author jbf
+ */
+public class JobScheduler {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    public static final String QUEUED= "queued";
+    public static final String RUNNING= "running";
+    public static final String DONE= "done";
+    public static final String FAILED= "failed";
+
+    /**
+     * the number of jobs remembered, when they are finished.
+     */
+    private static final int MAX_JOBS= 50;
+
+    /**
+     * the number of events remembered for each job.
+     */
+    private static final int MAX_EVENTS= 20000;
+
+    private static final AtomicLong nextId= new AtomicLong(1);
+
+    private static ThreadFactory daemon( final String name ) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t= new Thread( r, name );
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * the number of jobs which may run at once.
+     */
+    private static final int RUNNERS= 4;
+
+    private static final ExecutorService runner= Executors.newFixedThreadPool( RUNNERS, daemon("HapiVerifierJobs") );
+
+    /**
+     * the number of events which may be waiting to be sent to a subscriber,
+     * besides those it asked for when it subscribed, before it is dropped.
+     */
+    private static final int MAX_QUEUED= 10000;
+
+    /**
+     * events are sent to subscribers on these threads, each subscriber's 
+     * in order on one thread at a time, so that a slow client holds up 
+     * neither the run nor the other clients.  See Subscriber.
+     */
+    private static final ExecutorService notifier= Executors.newCachedThreadPool( daemon("HapiVerifierJobEvents") );
+
+    /**
+     * the jobs, oldest first.  Finished jobs are dropped once there are 
+     * more than MAX_JOBS, but jobs which are queued or running are kept.
+     */
+    private static final Map<String,Job> jobs= new LinkedHashMap<>();
+
+    /**
+     * the jobs which are queued or running, in the order submitted.
+     */
+    private static final List<Job> active= new ArrayList<>();
+
+    /**
+     * receives the events of a job, see Job.subscribe.
+     */
+    public interface JobListener {
+        /**
+         * an event of the job.
+         * @param job the job
+         * @param event the event, see Job.toJSON for its fields.
+         * @return false if no more events are wanted.
+         */
+        boolean event( Job job, JSONObject event );
+        /**
+         * the job is finished, and there will be no more events.
+         * @param job the job
+         */
+        void finished( Job job );
+        /**
+         * the listener fell too far behind and was dropped, and there will 
+         * be no more events.  It may subscribe again, since the last event
+         * it received.  This is called on another thread than the events, 
+         * which may still be being sent.
+         * @param job the job
+         */
+        void dropped( Job job );
+    }
+
+    /**
+     * a listener and the events waiting to be sent to it, which are sent in
+     * order on a thread of the notifier.  When more than its limit are 
+     * waiting, the events are discarded and the listener is dropped.
+     */
+    private static class Subscriber implements Runnable {
+        private final Job job;
+        private final JobListener listener;
+        private final int limit;
+        private final Deque<JSONObject> queue= new ArrayDeque<>();
+        private boolean sending= false;
+        private boolean finished= false;
+        private boolean closed= false;
+
+        private Subscriber( Job job, JobListener listener, List<JSONObject> backlog ) {
+            this.job= job;
+            this.listener= listener;
+            this.limit= backlog.size() + MAX_QUEUED;
+            this.queue.addAll( backlog );
+        }
+
+        /**
+         * queue the event to be sent.
+         * @return false if the listener is no longer subscribed.
+         */
+        private synchronized boolean offer( JSONObject e ) {
+            if ( closed ) return false;
+            if ( queue.size()>=limit ) {
+                logger.log( Level.INFO, "dropping a listener of job {0}, which is {1} events behind", new Object[] { job.getId(), queue.size() } );
+                closed= true;
+                queue.clear();
+                notifier.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.dropped( job );
+                    }
+                });
+                return false;
+            }
+            queue.add(e);
+            send();
+            return true;
+        }
+
+        /**
+         * the job is finished, so tell the listener after the events queued.
+         */
+        private synchronized void finish() {
+            if ( closed ) return;
+            closed= true;
+            finished= true;
+            send();
+        }
+
+        private synchronized void close() {
+            closed= true;
+            queue.clear();
+        }
+
+        private void send() {
+            if ( !sending ) {
+                sending= true;
+                notifier.execute( this );
+            }
+        }
+
+        @Override
+        public void run() {
+            while ( true ) {
+                JSONObject e;
+                synchronized ( this ) {
+                    e= queue.poll();
+                    if ( e==null && !finished ) {
+                        sending= false;
+                        return;
+                    }
+                }
+                if ( e==null ) {
+                    try {
+                        listener.finished( job );
+                    } catch ( RuntimeException ex ) {
+                        logger.log( Level.FINE, "job listener failed", ex );
+                    }
+                    return;
+                }
+                boolean more;
+                try {
+                    more= listener.event( job, e );
+                } catch ( RuntimeException ex ) {
+                    logger.log( Level.FINE, "job listener failed", ex );
+                    more= false;
+                }
+                if ( !more ) {
+                    close();
+                    job.unsubscribe( this );
+                    synchronized ( this ) {
+                        sending= false;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * a run of the checks for one server and/or check, or all of them.
+     */
+    public static class Job {
+        private final String id;
+        private final File root;
+        private final String server;
+        private final String test;
+        private final boolean refresh;
+        private String state= QUEUED;
+        private String message= "";
+        private final long submitted= System.currentTimeMillis();
+        private long started= 0;
+        private long finished= 0;
+        private long nextSeq= 1;
+        private int requests= 1;
+        private final Deque<JSONObject> events= new ArrayDeque<>();
+        private final List<Subscriber> listeners= new ArrayList<>();
+
+        private Job( String id, File root, String server, String test, boolean refresh ) {
+            this.id= id;
+            this.root= root;
+            this.server= server;
+            this.test= test;
+            this.refresh= refresh;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return null or the server URL run.
+         */
+        public String getServer() {
+            return server;
+        }
+
+        /**
+         * @return null or the check run.
+         */
+        public String getTest() {
+            return test;
+        }
+
+        /**
+         * @return true if the job only reruns the checks whose results have expired.
+         */
+        public boolean isRefresh() {
+            return refresh;
+        }
+
+        /**
+         * @return QUEUED, RUNNING, DONE or FAILED
+         */
+        public synchronized String getState() {
+            return state;
+        }
+
+        public synchronized String getMessage() {
+            return message;
+        }
+
+        public synchronized boolean isFinished() {
+            return state.equals(DONE) || state.equals(FAILED);
+        }
+
+        /**
+         * @return the number of requests which this job answers.
+         */
+        public synchronized int getRequestCount() {
+            return requests;
+        }
+
+        /**
+         * wait for the job to finish.
+         * @param timeoutMillis the time to wait, or 0 to wait until it finishes.
+         * @return true if the job is finished.
+         * @throws InterruptedException
+         */
+        public synchronized boolean waitFor( long timeoutMillis ) throws InterruptedException {
+            long end= System.currentTimeMillis() + timeoutMillis;
+            while ( !isFinished() ) {
+                long wait= timeoutMillis==0 ? 0 : end - System.currentTimeMillis();
+                if ( timeoutMillis>0 && wait<=0 ) return false;
+                wait( wait );
+            }
+            return true;
+        }
+
+        /**
+         * return true if a run of this job, started after now, would do the request.
+         */
+        private boolean covers( File root, String server, String test ) {
+            return !refresh && this.root.equals(root) 
+                    && ( this.server==null || this.server.equals(server) ) 
+                    && ( this.test==null || this.test.equals(test) );
+        }
+
+        /**
+         * add the event, and send it to the subscribers.
+         */
+        private synchronized void addEvent( String type, String eventServer, String check, int status, String eventMessage, boolean cached ) {
+            JSONObject e= new JSONObject();
+            try {
+                e.put( "seq", nextSeq++ );
+                e.put( "time", System.currentTimeMillis() );
+                e.put( "type", type );
+                if ( eventServer!=null ) e.put( "server", eventServer );
+                if ( check!=null ) {
+                    e.put( "check", check );
+                    e.put( "status", status );
+                    e.put( "cached", cached );
+                }
+                e.put( "message", eventMessage );
+            } catch ( JSONException ex ) {
+                throw new IllegalArgumentException(ex);
+            }
+            events.add(e);
+            if ( events.size()>MAX_EVENTS ) events.removeFirst();
+            Iterator<Subscriber> i= listeners.iterator();
+            while ( i.hasNext() ) {
+                if ( !i.next().offer(e) ) i.remove();
+            }
+        }
+
+        private synchronized void unsubscribe( Subscriber s ) {
+            listeners.remove(s);
+        }
+
+        private void start() {
+            synchronized ( this ) {
+                state= RUNNING;
+                started= System.currentTimeMillis();
+            }
+            addEvent( "start", server, null, 0, "started", false );
+        }
+
+        private void finish( String finalState, String finalMessage ) {
+            synchronized ( this ) {
+                state= finalState;
+                message= finalMessage;
+                finished= System.currentTimeMillis();
+                addEvent( finalState, server, null, 0, finalMessage, false );
+                for ( Subscriber s: listeners ) {
+                    s.finish();
+                }
+                listeners.clear();
+                notifyAll();
+            }
+            synchronized ( jobs ) {
+                active.remove(this);
+                trimJobs();
+            }
+        }
+
+        /**
+         * send the events after since to the listener, and then each event
+         * as it happens, until the job is finished or the listener returns
+         * false.  The listener is called on a thread of the scheduler, and
+         * when it falls more than MAX_QUEUED events behind it is dropped.
+         * @param since the events with seq greater than this are sent, so 0 is all.
+         * @param listener the listener
+         */
+        public synchronized void subscribe( long since, final JobListener listener ) {
+            List<JSONObject> backlog= new ArrayList<>();
+            for ( JSONObject e: events ) {
+                if ( e.optLong("seq")>since ) backlog.add(e);
+            }
+            Subscriber s= new Subscriber( this, listener, backlog );
+            if ( isFinished() ) {
+                s.finish();
+            } else {
+                listeners.add(s);
+                synchronized ( s ) {
+                    if ( !backlog.isEmpty() ) s.send();
+                }
+            }
+        }
+
+        /**
+         * return the job's state, and the events after since, as
+         * <pre>{ "id", "state", "message", "server", "test", "refresh", "submitted", "started", "finished", "next", "events":[ { "seq", "time", "type", "server", "check", "status", "cached", "message" } ] }</pre>
+         * where type is "start", "check", "done" or "failed", and "next" is
+         * the since to use when polling for the next events.
+         * @param since the events with seq greater than this are included.
+         * @return the JSON
+         * @throws JSONException
+         */
+        public synchronized JSONObject toJSON( long since ) throws JSONException {
+            JSONObject result= new JSONObject();
+            result.put( "id", id );
+            result.put( "state", state );
+            result.put( "message", message );
+            if ( server!=null ) result.put( "server", server );
+            if ( test!=null ) result.put( "test", test );
+            result.put( "refresh", refresh );
+            result.put( "requests", requests );
+            result.put( "submitted", submitted );
+            result.put( "started", started );
+            result.put( "finished", finished );
+            result.put( "next", nextSeq-1 );
+            JSONArray ee= new JSONArray();
+            for ( JSONObject e: events ) {
+                if ( e.getLong("seq")>since ) ee.put(e);
+            }
+            result.put( "events", ee );
+            return result;
+        }
+
+        private void run() {
+            start();
+            CheckListener l= new CheckListener() {
+                @Override
+                public void checkComplete(URL checkServer, String check, CheckStatus status, boolean cached) {
+                    addEvent( "check", checkServer.toString(), check, status.getStatus(), status.getMessage(), cached );
+                }
+            };
+            CheckListener oldListener= HapiVerifier.setCheckListener(l);
+            try {
+                URL u= server==null ? null : new URL(server);
+                if ( !refresh ) {
+                    HapiVerifier.resetCachedResults( root, u, test );
+                }
+                HapiVerifier.doAllServers( root, u );
+                finish( DONE, "finished in "+HapiUtil.getDurationForHumans( System.currentTimeMillis()-started ) );
+            } catch ( Exception ex ) {
+                logger.log( Level.WARNING, "job "+id+" failed", ex );
+                finish( FAILED, ex.toString() );
+            } finally {
+                HapiVerifier.setCheckListener(oldListener);
+            }
+        }
+    }
+
+    /**
+     * queue a run of the checks, returning at once.  When a job for the same
+     * server and check is queued or running, or a job which covers them is
+     * queued, that job is returned instead.
+     * @param root the root of the testing area.
+     * @param server null or the server URL, to rerun just this server.
+     * @param test null or the check name, to rerun just this check.
+     * @return the job, which may have been submitted before.
+     */
+    public static Job submit( File root, String server, String test ) {
+        return submit( root, server, test, false );
+    }
+
+    /**
+     * queue a run which resets nothing, so only the checks whose results
+     * have expired are run again, returning at once.  When a refresh is 
+     * queued or running, or a run of all checks is queued, that job is
+     * returned instead.
+     * @param root the root of the testing area.
+     * @return the job, which may have been submitted before.
+     * @see RefreshScheduler
+     */
+    public static Job submitRefresh( File root ) {
+        return submit( root, null, null, true );
+    }
+
+    private static Job submit( File root, String server, String test, boolean refresh ) {
+        try {
+            root= root.getCanonicalFile();
+        } catch ( IOException ex ) {
+            root= root.getAbsoluteFile();
+        }
+        final Job job;
+        synchronized ( jobs ) {
+            for ( Job j: active ) {
+                boolean same= j.root.equals(root) && Objects.equals( j.server, server ) && Objects.equals( j.test, test ) && j.refresh==refresh;
+                if ( same || ( j.covers( root, server, test ) && j.getState().equals(QUEUED) ) ) {
+                    synchronized ( j ) {
+                        j.requests++;
+                    }
+                    logger.log( Level.INFO, "request server={0} test={1} joins job {2}", new Object[] { server, test, j.getId() } );
+                    return j;
+                }
+            }
+            String id= Long.toString( System.currentTimeMillis(), 36 ) + "-" + nextId.getAndIncrement();
+            job= new Job( id, root, server, test, refresh );
+            jobs.put( id, job );
+            active.add( job );
+            trimJobs();
+        }
+        runner.execute( new Runnable() {
+            @Override
+            public void run() {
+                job.run();
+            }
+        });
+        logger.log( Level.INFO, "submitted job {0} server={1} test={2} refresh={3}", new Object[] { job.getId(), server, test, refresh } );
+        return job;
+    }
+
+    /**
+     * drop the oldest finished jobs while there are more than MAX_JOBS.
+     * The caller must hold the lock on jobs.
+     */
+    private static void trimJobs() {
+        Iterator<Job> i= jobs.values().iterator();
+        while ( jobs.size()>MAX_JOBS && i.hasNext() ) {
+            if ( i.next().isFinished() ) i.remove();
+        }
+    }
+
+    /**
+     * return the job with the ID.
+     * @param id the ID
+     * @return null or the job, if it is one of the most recent.
+     */
+    public static Job getJob( String id ) {
+        synchronized ( jobs ) {
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * return the most recent jobs, oldest first.
+     * @return the jobs
+     */
+    public static List<Job> getJobs() {
+        synchronized ( jobs ) {
+            return new ArrayList<>( jobs.values() );
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.hapiserver;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * verify format=json data requests for example times, for servers which
+ * list json in their outputFormats.  The response is walked one record at
+ * a time (see JsonDataScanner), so it is never held in memory.
+ * @author jbf
+ */
+public class JsonDataCheck extends Check {
+
+    public JsonDataCheck( URL hapi ) {
+        super(hapi,"jsondata");
+    }
+
+    private CheckStatus doCheck( String id, String min, String max, JSONArray parameters ) throws Exception {
+        int nf= 0;
+        for ( int i=0; i<parameters.length(); i++ ) {
+            nf+= HapiUtil.numberOfFields( parameters.getJSONObject(i) );
+        }
+
+        Map<String,String> params= new LinkedHashMap<>();
+        params.put( "id", id );
+        params.put( "time.min", min );
+        params.put( "time.max", max );
+        params.put( "format", "json" );
+        URL data= hapiURL( hapi, "data", params );
+        logger.log(Level.INFO, "opening {0}", data);
+
+        RecordStatistics stats= new RecordStatistics(parameters.length());
+        long valueCountErrors= 0;
+        long firstBadRecord= -1;
+        int firstBadValueCount= -1;
+        JsonDataScanner scanner;
+        try ( InputStream in= HttpFetcher.openStream(data) ) {
+            scanner= new JsonDataScanner(in);
+            while ( scanner.next() ) {
+                if ( scanner.getValueCount()!=nf ) {
+                    if ( valueCountErrors==0 ) {
+                        firstBadRecord= stats.getRecordCount();
+                        firstBadValueCount= scanner.getValueCount();
+                    }
+                    valueCountErrors++;
+                }
+                stats.record( scanner.getElementCount(), scanner.getRecordLength() );
+            }
+        }
+        stats.finish();
+        logger.log(Level.INFO, "Records received: {0}", stats.getRecordCount());
+        logger.info( stats.toString() );
+        if ( !scanner.hasData() ) {
+            return new CheckStatus(1,"response has no data");
+        } else if ( stats.getRecordCount()>0 ) {
+            if ( stats.getFieldCountErrors()>0 ) {
+                return new CheckStatus(2,stats.getFieldCountError());
+            } else if ( valueCountErrors>0 ) {
+                return new CheckStatus(2,"expected "+nf+" values but got "+firstBadValueCount
+                    +" in record "+(firstBadRecord+1)+" ("+valueCountErrors+" records with wrong number of values)" );
+            } else {
+                return new CheckStatus(0);
+            }
+        } else {
+            return new CheckStatus(1,"empty response");
+        }
+    }
+
+    private CheckStatus doCheck(String id) throws Exception {
+        URL info= hapiURL( hapi, "info", Collections.singletonMap( "id",id ) );
+        JSONObject jo= getJSONObject(info);
+        jo.getString("HAPI");
+
+        String[] ss= getSampleTimes( id, jo );
+
+        return doCheck( id, ss[0], ss[1], jo.getJSONArray("parameters") );
+
+    }
+
+    @Override
+    public CheckStatus doCheck() throws Exception {
+        if ( !hasOutputFormat("json") ) {
+            logger.info("server does not list json in its outputFormats");
+            return new CheckStatus(0,"format=json is not offered");
+        }
+        return doCatalogCheck( new DatasetCheck() {
+            @Override
+            public CheckStatus doCheck(String id) throws Exception {
+                return JsonDataCheck.this.doCheck(id);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,297 @@
+package org.hapiserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.json.JSONException;
+
+/**
+ * walks the "data" array of a HAPI format=json data response one record at
+ * a time, working directly on the bytes.  Only the structure of the JSON is
+ * followed: strings are skipped over rather than decoded, and numbers and
+ * literals are only checked for the characters they may contain, so
+ * nothing is kept of each record other than the number of elements it
+ * has, and the memory used is the same however large the response is.
+ *
+ * Use it like so:
+ * <pre>
+ * JsonDataScanner scanner= new JsonDataScanner(in);
+ * while ( scanner.next() ) {
+ *     int ne= scanner.getElementCount();
+ * }
+ * </pre>
+ * Members of the response other than "data" are skipped.
+ * @author jbf
+ */
+public class JsonDataScanner {
+
+    private final InputStream in;
+    private final byte[] bytes;
+    private int pos= 0;
+    private int limit= 0;
+    private long offset= 0; // position in the stream of bytes[0]
+
+    private boolean inData= false;
+    private boolean done= false;
+    private boolean haveData= false;
+    private long recordCount= 0;
+    private int elementCount= 0;
+    private int valueCount= 0;
+    private int recordLength= 0;
+
+    /**
+     * @param in the stream, which is read as needed but not closed.
+     */
+    public JsonDataScanner( InputStream in ) {
+        this.in= in;
+        this.bytes= new byte[64*1024];
+    }
+
+    private int read() throws IOException {
+        if ( pos==limit ) {
+            offset+= limit;
+            pos= 0;
+            limit= 0;
+            int n= in.read( bytes, 0, bytes.length );
+            if ( n==-1 ) return -1;
+            limit= n;
+        }
+        return bytes[pos++] & 0xFF;
+    }
+
+    /**
+     * return the next byte which is not whitespace, or -1 at the end of the stream.
+     */
+    private int nextToken() throws IOException {
+        int c= read();
+        while ( c==' ' || c=='\n' || c=='\r' || c=='\t' ) {
+            c= read();
+        }
+        return c;
+    }
+
+    private long position() {
+        return offset + pos;
+    }
+
+    private JSONException error( String expected, int c ) {
+        String got= c==-1 ? "end of stream" : ( "'" + (char)c + "'" );
+        return new JSONException( "expected " + expected + " but got " + got + " at byte " + position() );
+    }
+
+    private void expect( int c, int expected ) throws JSONException {
+        if ( c!=expected ) throw error( "'" + (char)expected + "'", c );
+    }
+
+    /**
+     * skip over a string, whose opening quote has been read.
+     */
+    private void skipString() throws IOException, JSONException {
+        int c;
+        while ( ( c= read() )!='"' ) {
+            if ( c=='\\' ) {
+                c= read();
+            }
+            if ( c==-1 ) throw error( "'\"'", c );
+        }
+    }
+
+    /**
+     * read a member name, whose opening quote has been read, and return
+     * true if it is "data".
+     */
+    private boolean isDataName() throws IOException, JSONException {
+        String name= "data";
+        int i= 0;
+        boolean match= true;
+        int c;
+        while ( ( c= read() )!='"' ) {
+            if ( c=='\\' ) {
+                c= read();
+                match= false;
+            }
+            if ( c==-1 ) throw error( "'\"'", c );
+            if ( i<name.length() && c==name.charAt(i) ) {
+                i++;
+            } else {
+                match= false;
+            }
+        }
+        return match && i==name.length();
+    }
+
+    /**
+     * skip over a value, whose first byte c has been read.
+     * @return the number of numbers, strings and literals within the value.
+     */
+    private int skipValue( int c ) throws IOException, JSONException {
+        switch (c) {
+            case '"':
+                skipString();
+                return 1;
+            case '[': {
+                int n= 0;
+                c= nextToken();
+                if ( c==']' ) return 0;
+                while ( true ) {
+                    n+= skipValue(c);
+                    c= nextToken();
+                    if ( c==']' ) return n;
+                    expect( c, ',' );
+                    c= nextToken();
+                }
+            }
+            case '{': {
+                int n= 0;
+                c= nextToken();
+                if ( c=='}' ) return 0;
+                while ( true ) {
+                    expect( c, '"' );
+                    skipString();
+                    expect( nextToken(), ':' );
+                    n+= skipValue( nextToken() );
+                    c= nextToken();
+                    if ( c=='}' ) return n;
+                    expect( c, ',' );
+                    c= nextToken();
+                }
+            }
+            default:
+                if ( !( c=='-' || ( c>='0' && c<='9' ) || c=='t' || c=='f' || c=='n' ) ) {
+                    throw error( "a value", c );
+                }
+                while ( ( c>='0' && c<='9' ) || ( c>='a' && c<='z' ) || c=='-' || c=='+' || c=='.' || c=='E' ) {
+                    c= read();
+                }
+                if ( c!=-1 ) pos--; // the byte after the literal is not part of it.
+                return 1;
+        }
+    }
+
+    /**
+     * read members of the response object until the data array is found
+     * or the object ends.
+     * @param c the first byte, either '{' or ','.
+     */
+    private void findData( int c ) throws IOException, JSONException {
+        if ( c=='{' ) {
+            c= nextToken();
+            if ( c=='}' ) {
+                done= true;
+                return;
+            }
+        } else {
+            c= nextToken();
+        }
+        while ( true ) {
+            expect( c, '"' );
+            boolean isData= isDataName();
+            expect( nextToken(), ':' );
+            c= nextToken();
+            if ( isData ) {
+                expect( c, '[' );
+                inData= true;
+                haveData= true;
+                return;
+            }
+            skipValue(c);
+            c= nextToken();
+            if ( c=='}' ) {
+                done= true;
+                return;
+            }
+            expect( c, ',' );
+            c= nextToken();
+        }
+    }
+
+    /**
+     * advance to the next record of the data array.
+     * @return false when there are no more records.
+     * @throws IOException
+     * @throws JSONException when the response is not valid JSON.
+     */
+    public boolean next() throws IOException, JSONException {
+        if ( done ) return false;
+        if ( !inData ) {
+            int c= nextToken();
+            expect( c, '{' );
+            findData( c );
+            if ( done ) return false;
+        }
+        long start= position();
+        int c= nextToken();
+        if ( recordCount>0 ) {
+            if ( c==',' ) {
+                c= nextToken();
+            } else if ( c!=']' ) {
+                throw error( "',' or ']'", c );
+            }
+        }
+        while ( c==']' ) { // end of the data array
+            inData= false;
+            c= nextToken();
+            if ( c=='}' ) {
+                done= true;
+                return false;
+            }
+            expect( c, ',' );
+            findData( c );
+            if ( done ) return false;
+            c= nextToken();
+        }
+        expect( c, '[' );
+        elementCount= 0;
+        valueCount= 0;
+        c= nextToken();
+        if ( c!=']' ) {
+            while ( true ) {
+                valueCount+= skipValue(c);
+                elementCount++;
+                c= nextToken();
+                if ( c==']' ) break;
+                expect( c, ',' );
+                c= nextToken();
+            }
+        }
+        recordCount++;
+        recordLength= (int)( position()-start );
+        return true;
+    }
+
+    /**
+     * return the number of elements in the current record, which should be
+     * the number of parameters.
+     * @return the number of elements
+     */
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    /**
+     * return the number of numbers, strings and literals in the current
+     * record, counting those within arrays, which should be the number of
+     * fields.
+     * @return the number of values
+     */
+    public int getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * return the length of the current record in bytes, including the comma before it.
+     * @return the length
+     */
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    /**
+     * return true if the response has a data member.  This is known once
+     * next has returned false.
+     * @return true if the data member was found.
+     */
+    public boolean hasData() {
+        return haveData;
+    }
+
+}
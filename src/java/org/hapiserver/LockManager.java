@@ -0,0 +1,214 @@
+package org.hapiserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * controls who may check each server, so that runs on different servers
+ * can go ahead at once, while a server is only checked by one run at a
+ * time.  Within the process, each server has a lease, which is given up
+ * when the server's checks are done, and which can be taken over once it
+ * expires, so a run which hangs does not hold the server forever.
+ *
+ * Between processes, for example the web application and a command-line
+ * run on the same root, runs are kept apart by a lock on ROOT/run.lock,
+ * which is held while any run of the process is going.  The operating
+ * system releases the lock when the process exits, so nothing is left
+ * behind by a crash.
+ * @author jbf
+ */
+public class LockManager {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static final ConcurrentHashMap<File,LockManager> instances= new ConcurrentHashMap<>();
+
+    private final File root;
+
+    private final Map<String,Lease> leases= new HashMap<>();
+
+    private int runs= 0;
+    private FileChannel runChannel;
+    private FileLock runLock;
+
+    /**
+     * the right to check a server, until it is closed or it expires.
+     */
+    public class Lease implements Closeable {
+        private final String server;
+        private final String owner;
+        private final long expires;
+
+        private Lease( String server, long leaseMillis ) {
+            this.server= server;
+            this.owner= Thread.currentThread().getName();
+            this.expires= leaseMillis>0 ? System.currentTimeMillis() + leaseMillis : Long.MAX_VALUE;
+        }
+
+        private boolean isExpired( long now ) {
+            return now>=expires;
+        }
+
+        /**
+         * give up the lease, so another run may check the server.
+         */
+        @Override
+        public void close() {
+            synchronized ( LockManager.this ) {
+                if ( leases.get(server)==this ) {
+                    leases.remove(server);
+                    LockManager.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    private LockManager( File root ) {
+        this.root= root;
+    }
+
+    /**
+     * return the lock manager for the root.
+     * @param root the root of the testing area.
+     * @return the lock manager
+     * @throws IOException
+     */
+    public static LockManager open( File root ) throws IOException {
+        File r= root.getCanonicalFile();
+        LockManager result= instances.get(r);
+        if ( result==null ) {
+            instances.putIfAbsent( r, new LockManager(r) );
+            result= instances.get(r);
+        }
+        return result;
+    }
+
+    /**
+     * wait until no other run is checking the server, and take the lease.
+     * A lease which has expired is taken over.
+     * @param server the server folder name, see HapiVerifier.serverFolderName
+     * @param leaseMillis the time the lease is held for, or 0 for no limit.
+     * @return the lease, which must be closed.
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    public synchronized Lease acquire( String server, long leaseMillis ) throws InterruptedIOException {
+        boolean waited= false;
+        while ( true ) {
+            long now= System.currentTimeMillis();
+            Lease holder= leases.get(server);
+            if ( holder!=null && holder.isExpired(now) ) {
+                logger.log( Level.WARNING, "lease on {0} held by {1} has expired, taking it over", new Object[] { server, holder.owner } );
+                holder= null;
+            }
+            if ( holder==null ) {
+                Lease lease= new Lease( server, leaseMillis );
+                leases.put( server, lease );
+                return lease;
+            }
+            if ( !waited ) {
+                logger.log( Level.INFO, "waiting for {0}, which is being checked by {1}", new Object[] { server, holder.owner } );
+                waited= true;
+            }
+            try {
+                wait( Math.min( holder.expires - now, 60000 ) );
+            } catch ( InterruptedException ex ) {
+                throw new InterruptedIOException("interrupted while waiting for "+server);
+            }
+        }
+    }
+
+    /**
+     * return true if a run of this process holds the server.
+     * @param server the server folder name
+     * @return true if the server is being checked.
+     */
+    public synchronized boolean isLocked( String server ) {
+        Lease holder= leases.get(server);
+        return holder!=null && !holder.isExpired( System.currentTimeMillis() );
+    }
+
+    /**
+     * note that a run is starting, taking the lock on ROOT/run.lock if this
+     * is the only run of this process.
+     * @throws IOException
+     * @throws IllegalArgumentException if another process is running on the root.
+     */
+    public synchronized void beginRun() throws IOException {
+        if ( runs==0 ) {
+            File f= new File( root, "run.lock" );
+            FileChannel channel= FileChannel.open( f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+            FileLock lock;
+            try {
+                lock= channel.tryLock();
+            } catch ( IOException | RuntimeException ex ) {
+                channel.close();
+                throw ex;
+            }
+            if ( lock==null ) {
+                channel.close();
+                throw new IllegalArgumentException("unable to run, another process is running on "+root);
+            }
+            String owner= ManagementFactory.getRuntimeMXBean().getName() + " since " + new java.util.Date() + "\n";
+            channel.truncate(0);
+            channel.write( ByteBuffer.wrap( owner.getBytes( Charset.forName("UTF-8") ) ), 0 );
+            runChannel= channel;
+            runLock= lock;
+        }
+        runs++;
+    }
+
+    /**
+     * note that a run is done, releasing the lock on ROOT/run.lock if it
+     * was the last run of this process.
+     * @throws IOException
+     */
+    public synchronized void endRun() throws IOException {
+        if ( runs==0 ) throw new IllegalStateException("endRun without beginRun");
+        runs--;
+        if ( runs==0 ) {
+            try {
+                runLock.release();
+            } finally {
+                runChannel.close();
+                runChannel= null;
+                runLock= null;
+            }
+        }
+    }
+
+    /**
+     * return true if a run is going on the root, in this process or another.
+     * @return true if a run is going.
+     */
+    public synchronized boolean isRunning() {
+        if ( runs>0 ) return true;
+        File f= new File( root, "run.lock" );
+        if ( !f.exists() ) return false;
+        try ( FileChannel channel= FileChannel.open( f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+            FileLock lock= channel.tryLock();
+            if ( lock==null ) return true;
+            lock.release();
+            return false;
+        } catch ( OverlappingFileLockException ex ) {
+            return true;
+        } catch ( IOException ex ) {
+            logger.log( Level.FINE, "unable to test {0}: {1}", new Object[] { f, ex } );
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package org.hapiserver;
+
+import java.text.MessageFormat;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * collects the log messages of one check.  A capture is attached to the
+ * thread running the check, and one Handler, installed once on the
+ * "HapiVerifier" logger, sends each record to the capture attached to the
+ * thread which logged it.  This way checks running at the same time each
+ * get their own log, and since a capture is only written by the thread it
+ * is attached to, no locking is needed.
+ *
+ * Threads working for a check, like those checking datasets, attach their
+ * own capture, which is appended to the check's capture when the work is
+ * done.
+ * @author jbf
+ */
+public class LogCapture {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static final ThreadLocal<LogCapture> current= new ThreadLocal<>();
+
+    static {
+        logger.addHandler( new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                LogCapture capture= current.get();
+                if ( capture!=null ) {
+                    capture.b.append( formatMessage(record) ).append("\n");
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() throws SecurityException {
+            }
+        });
+    }
+
+    private final StringBuilder b= new StringBuilder();
+
+    private LogCapture previous;
+
+    /**
+     * format the message of the record, like Formatter.formatMessage does, but
+     * without the need for a formatter instance.
+     * @param record the log record
+     * @return the message with its parameters filled in.
+     */
+    public static String formatMessage( LogRecord record ) {
+        String format= record.getMessage();
+        Object[] parameters= record.getParameters();
+        if ( format==null || parameters==null || parameters.length==0 ) {
+            return format;
+        }
+        if ( format.contains("{0") || format.contains("{1") || format.contains("{2") || format.contains("{3") ) {
+            try {
+                return MessageFormat.format( format, parameters );
+            } catch ( IllegalArgumentException ex ) {
+                return format;
+            }
+        } else {
+            return format;
+        }
+    }
+
+    /**
+     * return the capture attached to the current thread.
+     * @return null or the capture
+     */
+    public static LogCapture getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * send the log messages of the current thread to this capture, until
+     * detach is called.
+     */
+    public void attach() {
+        previous= current.get();
+        current.set(this);
+    }
+
+    /**
+     * stop sending the log messages of the current thread to this capture,
+     * restoring the capture which was attached before.
+     */
+    public void detach() {
+        if ( previous==null ) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+        previous= null;
+    }
+
+    /**
+     * append the log collected by another capture, which is no longer attached.
+     * @param capture
+     */
+    public void append( LogCapture capture ) {
+        b.append( capture.b );
+    }
+
+    /**
+     * return the log collected so far.
+     * @return the log
+     */
+    public String getLog() {
+        return b.toString();
+    }
+
+}
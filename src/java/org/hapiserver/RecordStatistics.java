@@ -0,0 +1,118 @@
+package org.hapiserver;
+
+import java.util.Locale;
+
+/**
+ * counts the records of a data response as they are read, checking the
+ * number of fields in each record, and keeping the rates at which records
+ * and bytes arrive.  Nothing is kept of the records themselves, so the
+ * memory used is the same however large the response is.
+ * @author jbf
+ */
+public class RecordStatistics {
+
+    private final int expectedFieldCount;
+    private final long t0= System.nanoTime();
+    private long t1= t0;
+
+    private long recordCount= 0;
+    private long byteCount= 0;
+    private long fieldCountErrors= 0;
+    private long firstBadRecord= -1;
+    private int firstBadFieldCount= -1;
+    private int firstFieldCount= -1;
+
+    /**
+     * @param expectedFieldCount the number of fields each record should have, or -1 if this is not known.
+     */
+    public RecordStatistics( int expectedFieldCount ) {
+        this.expectedFieldCount= expectedFieldCount;
+    }
+
+    /**
+     * count a record.
+     * @param fieldCount the number of fields in the record.
+     * @param bytes the length of the record, including its terminator.
+     */
+    public void record( int fieldCount, int bytes ) {
+        if ( firstFieldCount==-1 ) firstFieldCount= fieldCount;
+        if ( expectedFieldCount>-1 && fieldCount!=expectedFieldCount ) {
+            if ( fieldCountErrors==0 ) {
+                firstBadRecord= recordCount;
+                firstBadFieldCount= fieldCount;
+            }
+            fieldCountErrors++;
+        }
+        recordCount++;
+        byteCount+= bytes;
+    }
+
+    /**
+     * the response has been read, so stop the clock.
+     */
+    public void finish() {
+        t1= System.nanoTime();
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * return the number of records which did not have the expected number of fields.
+     * @return the number of records
+     */
+    public long getFieldCountErrors() {
+        return fieldCountErrors;
+    }
+
+    /**
+     * return the number of fields in the first record.
+     * @return the number of fields, or -1 if there were no records.
+     */
+    public int getFirstFieldCount() {
+        return firstFieldCount;
+    }
+
+    /**
+     * return the elapsed time in seconds, from when this was created until finish was called.
+     * @return the time in seconds.
+     */
+    public double getSeconds() {
+        return ( t1-t0 ) / 1e9;
+    }
+
+    public double getRecordsPerSecond() {
+        double s= getSeconds();
+        return s>0 ? recordCount / s : 0.;
+    }
+
+    public double getBytesPerSecond() {
+        double s= getSeconds();
+        return s>0 ? byteCount / s : 0.;
+    }
+
+    /**
+     * return a description of the first field count error, or null if there were none.
+     * @return null or the description
+     */
+    public String getFieldCountError() {
+        if ( fieldCountErrors==0 ) {
+            return null;
+        } else {
+            return "expected "+expectedFieldCount+" fields but got "+firstBadFieldCount
+                    + " in record "+ ( firstBadRecord+1 ) + " (" + fieldCountErrors + " records with wrong number of fields)";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format( Locale.US, "%d records, %d bytes in %.2f seconds (%.0f records/s, %.0f bytes/s)",
+                recordCount, byteCount, getSeconds(), getRecordsPerSecond(), getBytesPerSecond() );
+    }
+
+}
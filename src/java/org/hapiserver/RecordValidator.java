@@ -0,0 +1,361 @@
+package org.hapiserver;
+
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * checks the values of each record of a data response against the info
+ * response.  The time column must parse, must not decrease, and must be
+ * within [time.min,time.max), each double and integer column must parse as
+ * its type, and strings and times must be no longer than their length.
+ *
+ * A plan giving the kind and length of each column is made once from the
+ * parameters, and the values are checked where they are in the bytes of
+ * the response, so nothing is allocated for each record.  Only the first
+ * problem of each kind is described, and the others are counted.
+ * @author jbf
+ */
+public class RecordValidator {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static final Charset UTF8= Charset.forName("UTF-8");
+
+    private static final byte TIME= 0;
+    private static final byte DOUBLE= 1;
+    private static final byte INTEGER= 2;
+    private static final byte STRING= 3;
+
+    private static final int TIME_PARSE= 0;
+    private static final int TIME_ORDER= 1;
+    private static final int TIME_RANGE= 2;
+    private static final int NUMBER_PARSE= 3;
+    private static final int LENGTH= 4;
+
+    private static final String[] PROBLEMS= { "unparseable times", "decreasing times",
+        "times outside of the request", "unparseable numbers", "values longer than their length" };
+
+    /**
+     * returned by parseTime when the time cannot be parsed.
+     */
+    static final long BAD_TIME= Long.MIN_VALUE;
+
+    private final byte[] kinds;
+    private final int[] lengths;
+    private final String[] names;
+    private final long min;
+    private final long max;
+
+    private long record= 0;
+    private long lastTime= BAD_TIME;
+    private final long[] counts= new long[PROBLEMS.length];
+    private final String[] firstProblems= new String[PROBLEMS.length];
+
+    /**
+     * make the plan for checking each column of the records.
+     * @param parameters the parameters in the response, from the info response, starting with time.
+     * @param min the start of the request, time.min
+     * @param max the end of the request, time.max
+     * @throws JSONException
+     */
+    public RecordValidator( JSONArray parameters, String min, String max ) throws JSONException {
+        int nf= 0;
+        for ( int i=0; i<parameters.length(); i++ ) {
+            nf+= HapiUtil.numberOfFields( parameters.getJSONObject(i) );
+        }
+        kinds= new byte[nf];
+        lengths= new int[nf];
+        names= new String[nf];
+        int ifield= 0;
+        for ( int i=0; i<parameters.length(); i++ ) {
+            JSONObject p= parameters.getJSONObject(i);
+            String type= p.getString("type");
+            byte kind;
+            switch (type) {
+                case "isotime":
+                    kind= i==0 ? TIME : STRING;
+                    break;
+                case "double":
+                    kind= DOUBLE;
+                    break;
+                case "integer":
+                    kind= INTEGER;
+                    break;
+                default:
+                    kind= STRING;
+            }
+            int length= p.has("length") ? p.getInt("length") : Integer.MAX_VALUE;
+            int n= HapiUtil.numberOfFields(p);
+            for ( int j=0; j<n; j++ ) {
+                kinds[ifield]= kind;
+                lengths[ifield]= length;
+                names[ifield]= p.getString("name");
+                ifield++;
+            }
+        }
+        this.min= parseTime( min );
+        this.max= parseTime( max );
+        if ( this.min==BAD_TIME || this.max==BAD_TIME ) {
+            logger.log(Level.INFO, "unable to parse request times {0}/{1}, so times are not checked against them", new Object[] { min, max } );
+        }
+    }
+
+    private void problem( int kind, String description ) {
+        if ( counts[kind]==0 ) {
+            firstProblems[kind]= description + " in record " + record;
+        }
+        counts[kind]++;
+    }
+
+    /**
+     * check the current record of the scanner.  Fields beyond the
+     * parameters are not checked, since the number of fields is checked
+     * elsewhere.
+     * @param scanner the scanner, positioned at a record which is not a comment.
+     */
+    public void validate( CsvScanner scanner ) {
+        record++;
+        byte[] bytes= scanner.getBytes();
+        int n= Math.min( scanner.getFieldCount(), kinds.length );
+        for ( int i=0; i<n; i++ ) {
+            int start= scanner.getFieldStart(i);
+            int end= scanner.getFieldEnd(i);
+            switch ( kinds[i] ) {
+                case TIME:
+                    if ( end-start>lengths[i] ) problem( LENGTH, names[i]+" is longer than "+lengths[i] );
+                    checkTime( bytes, start, end );
+                    break;
+                case DOUBLE:
+                    if ( !isDouble( bytes, start, end ) ) {
+                        problem( NUMBER_PARSE, names[i]+" is not a double: "+new String( bytes, start, end-start, UTF8 ) );
+                    }
+                    break;
+                case INTEGER:
+                    if ( !isInteger( bytes, start, end ) ) {
+                        problem( NUMBER_PARSE, names[i]+" is not an integer: "+new String( bytes, start, end-start, UTF8 ) );
+                    }
+                    break;
+                default:
+                    if ( stringLength( bytes, start, end )>lengths[i] ) {
+                        problem( LENGTH, names[i]+" is longer than "+lengths[i] );
+                    }
+            }
+        }
+    }
+
+    /**
+     * check the time of a record of a binary response, which is padded with zeros.
+     * @param bytes the bytes of the response
+     * @param start the position of the time
+     * @param end the position after the time, including any padding.
+     */
+    public void validateTime( byte[] bytes, int start, int end ) {
+        record++;
+        while ( end>start && bytes[end-1]==0 ) end--;
+        checkTime( bytes, start, end );
+    }
+
+    private void checkTime( byte[] bytes, int start, int end ) {
+        long t= parseTime( bytes, start, end );
+        if ( t==BAD_TIME ) {
+            problem( TIME_PARSE, "unable to parse time "+new String( bytes, start, end-start, UTF8 ) );
+            return;
+        }
+        if ( lastTime!=BAD_TIME && t<lastTime ) {
+            problem( TIME_ORDER, "time decreases to "+new String( bytes, start, end-start, UTF8 ) );
+        }
+        lastTime= t;
+        if ( min!=BAD_TIME && max!=BAD_TIME && ( t<min || t>=max ) ) {
+            problem( TIME_RANGE, "time "+new String( bytes, start, end-start, UTF8 )+" is outside of the request" );
+        }
+    }
+
+    /**
+     * return the number of problems found.
+     * @return the number of problems
+     */
+    public long getProblemCount() {
+        long n= 0;
+        for ( long c: counts ) n+= c;
+        return n;
+    }
+
+    /**
+     * return a description of the problems found, or null if there were none.
+     * @return null or the description, like "2 decreasing times, first: time decreases to 2017-03-01T00:00:01Z in record 5"
+     */
+    public String getProblems() {
+        StringBuilder result= new StringBuilder();
+        for ( int i=0; i<counts.length; i++ ) {
+            if ( counts[i]>0 ) {
+                if ( result.length()>0 ) result.append("; ");
+                result.append(counts[i]).append(" ").append(PROBLEMS[i]).append(", first: ").append(firstProblems[i]);
+            }
+        }
+        return result.length()==0 ? null : result.toString();
+    }
+
+    private static boolean isDigit( byte b ) {
+        return b>='0' && b<='9';
+    }
+
+    /**
+     * return the number of bytes of the string, not counting quotes around it,
+     * and counting doubled quotes within it once.
+     */
+    private static int stringLength( byte[] bytes, int start, int end ) {
+        if ( end-start>=2 && bytes[start]=='"' && bytes[end-1]=='"' ) {
+            int n= 0;
+            for ( int i=start+1; i<end-1; i++ ) {
+                if ( bytes[i]=='"' ) i++;
+                n++;
+            }
+            return n;
+        } else {
+            return end-start;
+        }
+    }
+
+    /**
+     * return true if the bytes are a double, like -1.5e-3, 3., .5, or NaN.
+     */
+    static boolean isDouble( byte[] bytes, int start, int end ) {
+        while ( start<end && bytes[start]==' ' ) start++;
+        while ( end>start && bytes[end-1]==' ' ) end--;
+        int i= start;
+        if ( i<end && ( bytes[i]=='-' || bytes[i]=='+' ) ) i++;
+        if ( end-i==3 && bytes[i]=='N' && bytes[i+1]=='a' && bytes[i+2]=='N' ) return true;
+        int digits= 0;
+        while ( i<end && isDigit(bytes[i]) ) { i++; digits++; }
+        if ( i<end && bytes[i]=='.' ) {
+            i++;
+            while ( i<end && isDigit(bytes[i]) ) { i++; digits++; }
+        }
+        if ( digits==0 ) return false;
+        if ( i<end && ( bytes[i]=='e' || bytes[i]=='E' ) ) {
+            i++;
+            if ( i<end && ( bytes[i]=='-' || bytes[i]=='+' ) ) i++;
+            int edigits= 0;
+            while ( i<end && isDigit(bytes[i]) ) { i++; edigits++; }
+            if ( edigits==0 ) return false;
+        }
+        return i==end;
+    }
+
+    /**
+     * return true if the bytes are a 32-bit integer.
+     */
+    static boolean isInteger( byte[] bytes, int start, int end ) {
+        while ( start<end && bytes[start]==' ' ) start++;
+        while ( end>start && bytes[end-1]==' ' ) end--;
+        int i= start;
+        boolean negative= false;
+        if ( i<end && ( bytes[i]=='-' || bytes[i]=='+' ) ) {
+            negative= bytes[i]=='-';
+            i++;
+        }
+        if ( i==end || end-i>10 ) return false;
+        long value= 0;
+        while ( i<end ) {
+            if ( !isDigit(bytes[i]) ) return false;
+            value= value*10 + ( bytes[i]-'0' );
+            i++;
+        }
+        return negative ? -value>=Integer.MIN_VALUE : value<=Integer.MAX_VALUE;
+    }
+
+    /**
+     * return the value of n digits, or -1 if they are not all digits.
+     */
+    private static int digits( byte[] bytes, int i, int n, int end ) {
+        if ( i+n>end ) return -1;
+        int result= 0;
+        for ( int j=i; j<i+n; j++ ) {
+            if ( !isDigit(bytes[j]) ) return -1;
+            result= result*10 + ( bytes[j]-'0' );
+        }
+        return result;
+    }
+
+    private static long parseTime( String s ) {
+        if ( s==null ) return BAD_TIME;
+        byte[] bytes= s.getBytes(UTF8);
+        return parseTime( bytes, 0, bytes.length );
+    }
+
+    /**
+     * parse a HAPI time, like 2017-03-01T00:00:00.000Z or 2017-060T00:00Z,
+     * which may be truncated after any field, into nanoseconds since
+     * 1970-01-01T00:00Z.  The form is checked here, and the fields are 
+     * parsed by TimeUtil.parseISO8601Datum, without making a string.
+     * @return the time, or BAD_TIME if the bytes are not a time.
+     */
+    static long parseTime( byte[] bytes, int start, int end ) {
+        while ( start<end && bytes[start]==' ' ) start++;
+        while ( end>start && bytes[end-1]==' ' ) end--;
+        if ( end>start && bytes[end-1]=='Z' ) end--;
+        int i= start;
+        if ( digits( bytes, i, 4, end )<0 ) return BAD_TIME;
+        i+= 4;
+        boolean doy= false;
+        if ( i<end ) {
+            if ( bytes[i]!='-' ) return BAD_TIME;
+            i++;
+            if ( digits( bytes, i, 3, end )>-1 ) {
+                doy= true;
+                i+= 3;
+            } else {
+                if ( digits( bytes, i, 2, end )<0 ) return BAD_TIME;
+                i+= 2;
+                if ( i==end || bytes[i]!='-' ) return BAD_TIME;
+                i++;
+                if ( digits( bytes, i, 2, end )<0 ) return BAD_TIME;
+                i+= 2;
+            }
+        }
+        int last= end;
+        if ( i<end ) {
+            if ( bytes[i]!='T' ) return BAD_TIME;
+            i++;
+            if ( digits( bytes, i, 2, end )<0 ) return BAD_TIME;
+            i+= 2;
+            for ( int k=0; k<2 && i<end; k++ ) {
+                if ( bytes[i]!=':' ) return BAD_TIME;
+                i++;
+                if ( digits( bytes, i, 2, end )<0 ) return BAD_TIME;
+                i+= 2;
+            }
+            if ( i<end ) {
+                if ( bytes[i]!='.' ) return BAD_TIME;
+                i++;
+                int n= 0;
+                while ( i<end && isDigit(bytes[i]) ) {
+                    n++;
+                    i++;
+                }
+                if ( n==0 ) return BAD_TIME;
+                if ( n>9 ) last= end-n+9; // nanoseconds, the rest is ignored.
+            }
+        }
+        if ( i!=end ) return BAD_TIME;
+        int[] t= new int[] { 0, 1, 1, 0, 0, 0, 0 };
+        try {
+            TimeUtil.parseISO8601Datum( bytes, start, last, t, 0 );
+        } catch ( RuntimeException ex ) {
+            return BAD_TIME;
+        }
+        if ( doy ) {
+            if ( t[2]<1 || t[2]>( TimeUtil.isLeapYear(t[0]) ? 366 : 365 ) ) return BAD_TIME;
+        } else {
+            if ( t[1]<1 || t[1]>12 ) return BAD_TIME;
+            if ( t[2]<1 || t[2]>TimeUtil.daysInMonth( t[1], t[0] ) ) return BAD_TIME;
+        }
+        if ( t[3]>23 || t[4]>59 || t[5]>60 ) return BAD_TIME; // 60 for leap seconds
+        return TimeUtil.toEpochNanos( t );
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.hapiserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * runs the checks whose results have expired, in the background, so the
+ * report is kept current without rerunning everything at once.  Every
+ * "refreshMinutes" of ROOT/config.properties, give or take half of it at
+ * random, the results of each server and check are compared with their
+ * expiry times (see HapiVerifier.getExpiry), and when any have expired a
+ * refresh job is submitted (see JobScheduler.submitRefresh), which runs
+ * just those checks.  Since each result gets its own TTL less a random
+ * part when it is made, results made together expire at different times,
+ * and the checks of each server, and of all servers, drift apart over the
+ * day instead of being run together.  Setting "refreshMinutes" to 0 turns
+ * this off, and the setting is read again each hour.
+ * @author jbf
+ */
+public class RefreshScheduler {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static final ConcurrentHashMap<File,RefreshScheduler> instances= new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService timer= Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t= new Thread( r, "HapiVerifierRefresh" );
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * the time between looks when refreshing is turned off.
+     */
+    private static final long DISABLED_MILLIS= 3600000;
+
+    private final File root;
+    private ScheduledFuture<?> next;
+    private boolean stopped= false;
+
+    private RefreshScheduler( File root ) {
+        this.root= root;
+    }
+
+    /**
+     * start refreshing the results of the root, if it is not already being
+     * refreshed.  The first look is after a random part of "refreshMinutes",
+     * so processes started together do not look together.
+     * @param root the root of the testing area.
+     * @return the scheduler
+     * @throws IOException
+     */
+    public static RefreshScheduler start( File root ) throws IOException {
+        File r= root.getCanonicalFile();
+        RefreshScheduler result= new RefreshScheduler(r);
+        RefreshScheduler old= instances.putIfAbsent( r, result );
+        if ( old!=null ) return old;
+        long period= getPeriodMillis( r );
+        result.schedule( period>0 ? (long)( period * ThreadLocalRandom.current().nextDouble() ) : DISABLED_MILLIS );
+        logger.log( Level.INFO, "refreshing expired results in {0}", r );
+        return result;
+    }
+
+    /**
+     * stop refreshing the results.
+     */
+    public synchronized void stop() {
+        stopped= true;
+        if ( next!=null ) next.cancel(false);
+        instances.remove( root, this );
+    }
+
+    private static long getPeriodMillis( File root ) throws IOException {
+        if ( !root.exists() ) return 0;
+        return HapiVerifier.getConfigInt( HapiVerifier.getConfig(root), "refreshMinutes" ) * 60000L;
+    }
+
+    private synchronized void schedule( long delayMillis ) {
+        if ( stopped ) return;
+        next= timer.schedule( new Runnable() {
+            @Override
+            public void run() {
+                look();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * return the number of results of the root which have expired, counting
+     * checks with no result at all.
+     * @param root the root of the testing area.
+     * @param now the current time
+     * @return the number of checks to run
+     * @throws IOException
+     */
+    public static int countExpired( File root, long now ) throws IOException {
+        Properties config= HapiVerifier.getConfig(root);
+        List<String> checkNames= HapiVerifier.getCheckNames(root);
+        ResultStore store= HapiVerifier.getResultStore(root);
+        int count= 0;
+        for ( URL server: HapiVerifier.getServers(root) ) {
+            String serverName= HapiVerifier.serverFolderName(server);
+            for ( String checkName: checkNames ) {
+                CheckStatus c= store.getSummary( serverName, checkName );
+                if ( c==null || HapiVerifier.getExpiry( config, serverName, checkName, c )<=now ) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void look() {
+        long period= 0;
+        try {
+            period= getPeriodMillis(root);
+            if ( period>0 ) {
+                int count= countExpired( root, System.currentTimeMillis() );
+                if ( count==0 ) {
+                    logger.log( Level.FINE, "no results have expired in {0}", root );
+                } else if ( HapiVerifier.isRunning(root) ) {
+                    logger.log( Level.FINE, "{0} results have expired in {1}, but a run is going", new Object[] { count, root } );
+                } else {
+                    logger.log( Level.INFO, "{0} results have expired in {1}", new Object[] { count, root } );
+                    JobScheduler.submitRefresh(root);
+                }
+            }
+        } catch ( IOException | RuntimeException ex ) {
+            logger.log( Level.WARNING, "unable to refresh results in "+root, ex );
+        } finally {
+            if ( period>0 ) {
+                schedule( period/2 + (long)( period * ThreadLocalRandom.current().nextDouble() ) );
+            } else {
+                schedule( DISABLED_MILLIS );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+package org.hapiserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * writes the report pages for each server, only rewriting the pages whose
+ * results have changed.  The page for a check is written when the time
+ * stamp of its result differs from the one last written, or, for pages
+ * written before this process started, when the page is older than the
+ * result.  The page for a server is written when its contents differ from
+ * what is on disk.  So a rerun of one check on one server rewrites just
+ * that check's page and its server's page, and the summary is made from
+ * the results in memory.
+ *
+ * The results passed in may come from ResultStore.getSummary, without
+ * their logs, and the log is read from the store only when the page must
+ * be written.  When the pages are made as they are requested (see
+ * DoReport1), writing is turned off and runs write no pages at all.
+ * @author jbf
+ */
+public class ReportBuilder {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static final ConcurrentHashMap<File,ReportBuilder> instances= new ConcurrentHashMap<>();
+
+    private final File root;
+
+    /**
+     * the time stamp of the result on each check page, keyed by "SERVER/CHECK".
+     */
+    private final ConcurrentHashMap<String,Long> written= new ConcurrentHashMap<>();
+
+    /**
+     * the contents of each server page, keyed by server folder name.
+     */
+    private final ConcurrentHashMap<String,String> serverPages= new ConcurrentHashMap<>();
+
+    private volatile boolean writePages= true;
+
+    private ReportBuilder( File root ) {
+        this.root= root;
+    }
+
+    /**
+     * return the report builder for the root.
+     * @param root the root of the testing area.
+     * @return the report builder
+     * @throws IOException
+     */
+    public static ReportBuilder open( File root ) throws IOException {
+        File r= root.getCanonicalFile();
+        ReportBuilder result= instances.get(r);
+        if ( result==null ) {
+            instances.putIfAbsent( r, new ReportBuilder(r) );
+            result= instances.get(r);
+        }
+        return result;
+    }
+
+    /**
+     * turn off writing the pages, when they are made as they are requested
+     * instead (see DoReport1).
+     * @param writePages false if writeServerReport should do nothing.
+     */
+    public void setWritePages( boolean writePages ) {
+        this.writePages= writePages;
+    }
+
+    /**
+     * write the page for the server, ROOT/&lt;serverName&gt;.html, and the page
+     * for each check within the server folder, where they have changed.
+     * @param server the HAPI server URL, ending in "/hapi"
+     * @param check a map from check name to CheckStatus
+     * @return the number of pages written.
+     * @throws IOException
+     */
+    public int writeServerReport( URL server, Map<String,CheckStatus> check ) throws IOException {
+        if ( !writePages ) return 0;
+
+        String serverName= HapiVerifier.serverFolderName(server);
+
+        File serverRoot= new File( root, serverName );
+        if ( !serverRoot.exists() ) {
+            if ( !serverRoot.mkdirs() ) {
+                throw new IllegalArgumentException("unable to mkdir "+serverRoot);
+            }
+        }
+
+        int count= 0;
+
+        for ( Entry<String,CheckStatus> e: check.entrySet() ) {
+            if ( writeCheckReport( server, serverRoot, e.getKey(), e.getValue() ) ) {
+                count++;
+            }
+        }
+
+        StringWriter page= new StringWriter();
+        renderServerPage( server, check, page );
+        String s= page.toString();
+        File serverPage= new File( root, serverName + ".html" );
+        String old= serverPages.get(serverName);
+        if ( old==null && serverPage.exists() ) {
+            old= new String( Files.readAllBytes( serverPage.toPath() ), Charset.defaultCharset() );
+        }
+        if ( !s.equals(old) ) {
+            Files.write( serverPage.toPath(), s.getBytes(Charset.defaultCharset()) );
+            count++;
+        }
+        serverPages.put( serverName, s );
+
+        logger.log( Level.FINE, "wrote {0} pages for {1}", new Object[] { count, server } );
+        return count;
+    }
+
+    /**
+     * write the page for the check if its result has changed.
+     * @return true if the page was written.
+     */
+    private boolean writeCheckReport( URL server, File serverRoot, String checkName, CheckStatus c ) throws IOException {
+        String key= serverRoot.getName() + "/" + checkName;
+        File f= new File( serverRoot, checkName+".html" );
+        Long t= written.get(key);
+        if ( t==null ) {
+            if ( f.exists() && f.lastModified()>=c.getTimeStamp() ) {
+                written.put( key, c.getTimeStamp() );
+                return false;
+            }
+        } else if ( t==c.getTimeStamp() && f.exists() ) {
+            return false;
+        }
+
+        if ( c.getLog().length()==0 ) {
+            CheckStatus full= HapiVerifier.getResultStore(root).get( serverRoot.getName(), checkName );
+            if ( full!=null && full.getTimeStamp()==c.getTimeStamp() ) {
+                c= full;
+            }
+        }
+
+        try (PrintWriter out2 = new PrintWriter( f )) {
+            renderCheckPage( server, checkName, c, out2 );
+        }
+        written.put( key, c.getTimeStamp() );
+        return true;
+    }
+
+    /**
+     * write the page for the server, listing the result of each check.
+     * @param server the HAPI server URL, ending in "/hapi"
+     * @param check a map from check name to CheckStatus, which need not have logs.
+     * @param w the page is written here.
+     */
+    public static void renderServerPage( URL server, Map<String,CheckStatus> check, Writer w ) {
+        String serverName= HapiVerifier.serverFolderName(server);
+        PrintWriter out3= new PrintWriter( w );
+        out3.println( "<h2>Server <a href="+server+">"+server +"</a></h2>");
+
+        out3.println( "<table>");
+        for ( Entry<String,CheckStatus> e: check.entrySet() ) {
+            CheckStatus c= e.getValue();
+            String ball= HapiVerifier.getBall( c );
+            out3.printf( "<tr><td><a href=\"%s/%s.html\"><img src='%s.gif'>%s</a></td><td>%s</td></tr>\n", serverName, e.getKey(), ball, e.getKey(), c.getMessage() );
+        }
+        out3.println("</table>");
+        out3.flush();
+    }
+
+    /**
+     * write the page for the check, with its log.
+     * @param server the HAPI server URL, ending in "/hapi"
+     * @param checkName the check name
+     * @param c the result, with its log.
+     * @param w the page is written here.
+     * @throws IOException
+     */
+    public static void renderCheckPage( URL server, String checkName, CheckStatus c, Writer w ) throws IOException {
+        PrintWriter out2= new PrintWriter( w );
+        out2.println( "<h2>" );
+        out2.println( "Test \""+checkName+"\" on server "+ server );
+        out2.println( "</h2>" );
+        out2.println( "<img src='../"+HapiVerifier.getBall(c)+".gif'>" );
+        out2.println( "Status Code=" + c.getStatus() + "<br>");
+        out2.println( c.getMessage() + "<br>");
+        out2.println( String.format( "<a href='../DoUpdate?test=%s&server=%s&action=go'>Rerun</a> test<br>", new Object[] { checkName, server } ) );
+        out2.println( "<br>" );
+        out2.println( "<h2>Log output</h2>");
+        out2.println( String.format( "<small>Test last run %s</small><br><br>", new java.util.Date(c.getTimeStamp()).toString() ) );
+        out2.flush();
+        HtmlLogRenderer.render( new StringReader( c.getLog() ), w );
+        out2.println();
+        out2.println( "<img src='../"+HapiVerifier.getBall(c)+".gif'>" );
+        out2.println( c.getMessage() + "<br>");
+        out2.println( "<br>Return to <a href='../index.html'>summary</a><br><br><br>\n");
+        out2.flush();
+    }
+
+}
@@ -0,0 +1,518 @@
+package org.hapiserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * keeps the history of the results of each check of each server, so that
+ * changes in status, time taken and bytes read can be followed over months.
+ * There is a file for each month (UTC), ROOT/history/YYYY-MM.hist, and
+ * each result takes about 15 bytes: the time in seconds within the month,
+ * the status, a hash of the message, the duration and the bytes read,
+ * with the server and check given by a number which is defined the first
+ * time they appear in the file.
+ *
+ * Months which ended more than "full days" ago are thinned out by
+ * maintain, keeping the first result of each day for each check and
+ * every result where the status or message changed, and months older than
+ * the retention are deleted.
+ *
+ * Queries read the months in the time range one record at a time, so any
+ * amount of history can be summarized without holding it in memory.
+ * @author jbf
+ */
+public class ResultHistory {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static final Charset UTF8= Charset.forName("UTF-8");
+
+    private static final byte[] MAGIC= "HAPIHS01".getBytes(UTF8);
+
+    /**
+     * header is the magic, the resolution, and the start of the month.
+     */
+    private static final int HEADER_LENGTH= MAGIC.length + 1 + 8;
+
+    private static final byte RESOLUTION_FULL= 0;
+    private static final byte RESOLUTION_THINNED= 1;
+
+    private static final byte KEY= 'K';
+    private static final byte SAMPLE= 'S';
+
+    private static final long MILLIS_PER_DAY= 86400000L;
+
+    private static final ConcurrentHashMap<File,ResultHistory> instances= new ConcurrentHashMap<>();
+
+    /**
+     * receives the results of a query, in time order within each month.
+     */
+    public interface Visitor {
+        /**
+         * one result
+         * @param server the server folder name
+         * @param check the check name
+         * @param timeStamp the time the check was run, in milliseconds since 1970-01-01T00:00Z, to the second.
+         * @param status the status code
+         * @param messageHash the hashCode of the message
+         * @param durationMillis the time taken by the check, in milliseconds.
+         * @param bytes the bytes read from the server.
+         */
+        void sample( String server, String check, long timeStamp, int status, int messageHash, long durationMillis, long bytes );
+    }
+
+    private final File dir;
+
+    /**
+     * the month being written, or -1.
+     */
+    private int month= -1;
+    private long monthStart;
+    private OutputStream out;
+    private final Map<String,Integer> keys= new HashMap<>();
+
+    private ResultHistory( File dir ) {
+        this.dir= dir;
+    }
+
+    /**
+     * return the history for the root.
+     * @param root the root of the testing area.
+     * @return the history
+     * @throws IOException
+     */
+    public static ResultHistory open( File root ) throws IOException {
+        File d= new File( root, "history" ).getCanonicalFile();
+        ResultHistory result= instances.get(d);
+        if ( result==null ) {
+            if ( !d.exists() && !d.mkdirs() ) {
+                throw new IOException("unable to mkdir "+d);
+            }
+            instances.putIfAbsent( d, new ResultHistory(d) );
+            result= instances.get(d);
+        }
+        return result;
+    }
+
+    /**
+     * the times in nanoseconds fit in a long up to 2262, so times are limited to this.
+     */
+    private static final long MAX_MILLIS= 9000000000000L;
+
+    /**
+     * return the month number, year*12 + month-1, of the time.
+     */
+    private static int monthOf( long millis ) {
+        millis= Math.max( -MAX_MILLIS, Math.min( MAX_MILLIS, millis ) );
+        int[] tt= TimeUtil.fromEpochNanos( millis*1000000, new int[7] );
+        return tt[0]*12 + tt[1]-1;
+    }
+
+    private static long monthStart( int month ) {
+        return TimeUtil.toEpochNanos( month/12, month%12+1, 1, 0, 0, 0, 0 ) / 1000000;
+    }
+
+    private File monthFile( int month ) {
+        return new File( dir, String.format( "%04d-%02d.hist", month/12, month%12+1 ) );
+    }
+
+    /**
+     * return the month number of the file, or -1 if it is not a month file.
+     */
+    private static int monthOf( File f ) {
+        String n= f.getName();
+        if ( n.length()!=12 || !n.endsWith(".hist") || n.charAt(4)!='-' ) return -1;
+        try {
+            return Integer.parseInt( n.substring(0,4) )*12 + Integer.parseInt( n.substring(5,7) )-1;
+        } catch ( NumberFormatException ex ) {
+            return -1;
+        }
+    }
+
+    /**
+     * return the month files, in order.
+     */
+    private List<File> monthFiles() {
+        File[] ff= dir.listFiles();
+        List<File> result= new ArrayList<>();
+        if ( ff==null ) return result;
+        Arrays.sort(ff);
+        for ( File f: ff ) {
+            if ( monthOf(f)>-1 ) result.add(f);
+        }
+        return result;
+    }
+
+    /**
+     * add the result to the history.
+     * @param server the server folder name
+     * @param check the check name
+     * @param status the result, with its time stamp, duration and bytes read.
+     * @throws IOException
+     */
+    public synchronized void record( String server, String check, CheckStatus status ) throws IOException {
+        long t= status.getTimeStamp();
+        int m= monthOf(t);
+        if ( m!=month ) {
+            openMonth(m);
+        }
+        ByteArrayOutputStream buf= new ByteArrayOutputStream(64);
+        String key= server + "\n" + check;
+        Integer id= keys.get(key);
+        if ( id==null ) {
+            id= keys.size();
+            buf.write( KEY );
+            writeVarLong( buf, id );
+            writeString( buf, server );
+            writeString( buf, check );
+            keys.put( key, id );
+        }
+        buf.write( SAMPLE );
+        writeVarLong( buf, id );
+        writeVarLong( buf, Math.max( 0, ( t - monthStart ) / 1000 ) );
+        writeVarLong( buf, status.getStatus() );
+        writeInt( buf, String.valueOf( status.getMessage() ).hashCode() );
+        writeVarLong( buf, Math.max( 0, status.getDurationMillis() ) );
+        writeVarLong( buf, Math.max( 0, status.getBytesRead() ) );
+        buf.writeTo( out );
+        out.flush();
+    }
+
+    /**
+     * open the month for appending, reading the keys already defined and
+     * cutting off a record which was only partly written.
+     */
+    private void openMonth( int m ) throws IOException {
+        close();
+        keys.clear();
+        File f= monthFile(m);
+        long start= monthStart(m);
+        long end= 0;
+        if ( f.exists() ) {
+            try {
+                end= scan( f, null, Long.MIN_VALUE, Long.MAX_VALUE, keys );
+            } catch ( IOException ex ) {
+                logger.log( Level.WARNING, "history file {0} is unreadable, starting it again: {1}", new Object[] { f, ex } );
+                end= 0;
+            }
+        }
+        if ( end==0 ) {
+            keys.clear();
+            try ( OutputStream out1= new FileOutputStream(f) ) {
+                writeHeader( out1, RESOLUTION_FULL, start );
+            }
+        } else if ( end<f.length() ) {
+            logger.log( Level.WARNING, "cutting off {0} bytes of incomplete records at the end of {1}", new Object[] { f.length()-end, f } );
+            try ( RandomAccessFile raf= new RandomAccessFile( f, "rw" ) ) {
+                raf.setLength(end);
+            }
+        }
+        out= new BufferedOutputStream( new FileOutputStream( f, true ) );
+        month= m;
+        monthStart= start;
+    }
+
+    /**
+     * close the month being written.
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if ( out!=null ) {
+            out.close();
+            out= null;
+        }
+        month= -1;
+    }
+
+    /**
+     * read the results from start (inclusive) to end (exclusive) for the
+     * server and check.
+     * @param server null for all servers, or the server folder name
+     * @param check null for all checks, or the check name
+     * @param start start time in milliseconds since 1970-01-01T00:00Z
+     * @param end end time in milliseconds since 1970-01-01T00:00Z
+     * @param visitor receives each result.
+     * @throws IOException
+     */
+    public void query( final String server, final String check, long start, long end, final Visitor visitor ) throws IOException {
+        synchronized ( this ) {
+            if ( out!=null ) out.flush();
+        }
+        Visitor filter= visitor;
+        if ( server!=null || check!=null ) {
+            filter= new Visitor() {
+                @Override
+                public void sample(String s, String c, long timeStamp, int status, int messageHash, long durationMillis, long bytes) {
+                    if ( ( server==null || server.equals(s) ) && ( check==null || check.equals(c) ) ) {
+                        visitor.sample( s, c, timeStamp, status, messageHash, durationMillis, bytes );
+                    }
+                }
+            };
+        }
+        int startMonth= monthOf(start);
+        int endMonth= monthOf(end-1);
+        for ( File f: monthFiles() ) {
+            int m= monthOf(f);
+            if ( m<startMonth || m>endMonth ) continue;
+            try {
+                scan( f, filter, start, end, new HashMap<String,Integer>() );
+            } catch ( IOException ex ) {
+                logger.log( Level.WARNING, "unable to read history file {0}: {1}", new Object[] { f, ex } );
+            }
+        }
+    }
+
+    /**
+     * read the month file, passing the results within the range to the
+     * visitor, and return the length of the complete records, or 0 if the
+     * header is not complete.
+     * @param keys the keys defined are added to this.
+     */
+    private static long scan( File f, Visitor visitor, long start, long end, Map<String,Integer> keys ) throws IOException {
+        try ( CountingInputStream cin= new CountingInputStream( new BufferedInputStream( new FileInputStream(f) ) ) ) {
+            DataInputStream in= new DataInputStream(cin);
+            byte[] magic= new byte[MAGIC.length];
+            long fileStart;
+            try {
+                in.readFully(magic);
+                in.readByte();
+                fileStart= in.readLong();
+            } catch ( EOFException ex ) {
+                return 0;
+            }
+            if ( !Arrays.equals( magic, MAGIC ) ) {
+                throw new IOException("not a history file: "+f);
+            }
+            List<String[]> names= new ArrayList<>();
+            long good= cin.count;
+            try {
+                while ( true ) {
+                    int type= in.read();
+                    if ( type==-1 ) break;
+                    if ( type==KEY ) {
+                        int id= (int)readVarLong(in);
+                        String server= readString(in);
+                        String check= readString(in);
+                        if ( id!=names.size() ) throw new IOException("key out of sequence in "+f);
+                        names.add( new String[] { server, check } );
+                        keys.put( server + "\n" + check, id );
+                    } else if ( type==SAMPLE ) {
+                        int id= (int)readVarLong(in);
+                        long t= fileStart + readVarLong(in) * 1000;
+                        int status= (int)readVarLong(in);
+                        int hash= in.readInt();
+                        long duration= readVarLong(in);
+                        long bytes= readVarLong(in);
+                        if ( id>=names.size() ) throw new IOException("undefined key in "+f);
+                        if ( visitor!=null && t>=start && t<end ) {
+                            String[] n= names.get(id);
+                            visitor.sample( n[0], n[1], t, status, hash, duration, bytes );
+                        }
+                    } else {
+                        throw new IOException("bad record type "+type+" in "+f);
+                    }
+                    good= cin.count;
+                }
+            } catch ( EOFException ex ) {
+                // the last record was only partly written.
+            }
+            return good;
+        }
+    }
+
+    /**
+     * thin out the months which ended more than fullDays ago, keeping the
+     * first result of each day for each check and every result where the
+     * status or message changed, and delete the months which ended more
+     * than keepMonths months ago.
+     * @param fullDays the number of days kept in full.
+     * @param keepMonths the number of months kept.
+     * @throws IOException
+     */
+    public synchronized void maintain( int fullDays, int keepMonths ) throws IOException {
+        long now= System.currentTimeMillis();
+        int thisMonth= monthOf(now);
+        for ( File f: monthFiles() ) {
+            int m= monthOf(f);
+            if ( m==month ) continue;
+            if ( m < thisMonth-keepMonths ) {
+                if ( !f.delete() ) {
+                    logger.log( Level.WARNING, "unable to delete {0}", f );
+                } else {
+                    logger.log( Level.FINE, "deleted history {0}", f );
+                }
+            } else if ( monthStart(m+1) < now - fullDays*MILLIS_PER_DAY && resolution(f)==RESOLUTION_FULL ) {
+                thin( f, m );
+            }
+        }
+    }
+
+    private static byte resolution( File f ) throws IOException {
+        try ( InputStream in= new FileInputStream(f) ) {
+            byte[] header= new byte[HEADER_LENGTH];
+            int n= 0;
+            while ( n<header.length ) {
+                int n1= in.read( header, n, header.length-n );
+                if ( n1==-1 ) return RESOLUTION_THINNED; // nothing to thin
+                n+= n1;
+            }
+            return header[MAGIC.length];
+        }
+    }
+
+    /**
+     * rewrite the month keeping only the first result of each day and
+     * changes, replacing the file once the new one is complete.
+     */
+    private void thin( File f, int m ) throws IOException {
+        final long start= monthStart(m);
+        File tmp= new File( f.getPath() + ".tmp" );
+        final int[] counts= new int[2];
+        try ( final OutputStream tout= new BufferedOutputStream( new FileOutputStream(tmp) ) ) {
+            writeHeader( tout, RESOLUTION_THINNED, start );
+            final Map<String,long[]> last= new HashMap<>();
+            final IOException[] error= new IOException[1];
+            scan( f, new Visitor() {
+                @Override
+                public void sample(String server, String check, long timeStamp, int status, int messageHash, long durationMillis, long bytes) {
+                    counts[0]++;
+                    String key= server + "\n" + check;
+                    long day= ( timeStamp - start ) / MILLIS_PER_DAY;
+                    long[] l= last.get(key);
+                    if ( l!=null && l[1]==day && l[2]==status && l[3]==messageHash ) return;
+                    ByteArrayOutputStream buf= new ByteArrayOutputStream(64);
+                    if ( l==null ) {
+                        l= new long[] { last.size(), -1, 0, 0 };
+                        buf.write( KEY );
+                        writeVarLong( buf, l[0] );
+                        writeString( buf, server );
+                        writeString( buf, check );
+                        last.put( key, l );
+                    }
+                    buf.write( SAMPLE );
+                    writeVarLong( buf, l[0] );
+                    writeVarLong( buf, ( timeStamp - start ) / 1000 );
+                    writeVarLong( buf, status );
+                    writeInt( buf, messageHash );
+                    writeVarLong( buf, durationMillis );
+                    writeVarLong( buf, bytes );
+                    l[1]= day;
+                    l[2]= status;
+                    l[3]= messageHash;
+                    counts[1]++;
+                    try {
+                        buf.writeTo( tout );
+                    } catch ( IOException ex ) {
+                        if ( error[0]==null ) error[0]= ex;
+                    }
+                }
+            }, Long.MIN_VALUE, Long.MAX_VALUE, new HashMap<String,Integer>() );
+            if ( error[0]!=null ) throw error[0];
+        }
+        Files.move( tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        logger.log( Level.INFO, "thinned history {0} from {1} to {2} results", new Object[] { f, counts[0], counts[1] } );
+    }
+
+    private static void writeHeader( OutputStream out, byte resolution, long start ) throws IOException {
+        ByteArrayOutputStream buf= new ByteArrayOutputStream(HEADER_LENGTH);
+        buf.write( MAGIC );
+        buf.write( resolution );
+        for ( int i=56; i>=0; i-=8 ) buf.write( (int)( start >>> i ) );
+        buf.writeTo( out );
+    }
+
+    private static void writeInt( ByteArrayOutputStream buf, int i ) {
+        buf.write( i>>>24 );
+        buf.write( i>>>16 );
+        buf.write( i>>>8 );
+        buf.write( i );
+    }
+
+    /**
+     * write the non-negative number seven bits at a time, low bits first.
+     */
+    private static void writeVarLong( ByteArrayOutputStream buf, long v ) {
+        while ( ( v & ~0x7FL )!=0 ) {
+            buf.write( (int)( ( v & 0x7F ) | 0x80 ) );
+            v>>>= 7;
+        }
+        buf.write( (int)v );
+    }
+
+    private static long readVarLong( DataInputStream in ) throws IOException {
+        long result= 0;
+        for ( int shift=0; shift<64; shift+=7 ) {
+            int b= in.readUnsignedByte();
+            result|= (long)( b & 0x7F ) << shift;
+            if ( ( b & 0x80 )==0 ) return result;
+        }
+        throw new IOException("bad number in history");
+    }
+
+    private static void writeString( ByteArrayOutputStream buf, String s ) {
+        byte[] bytes= s.getBytes(UTF8);
+        writeVarLong( buf, bytes.length );
+        buf.write( bytes, 0, bytes.length );
+    }
+
+    private static String readString( DataInputStream in ) throws IOException {
+        byte[] bytes= new byte[(int)readVarLong(in)];
+        in.readFully(bytes);
+        return new String( bytes, UTF8 );
+    }
+
+    /**
+     * counts the bytes read, so the end of the last complete record is known.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count= 0;
+
+        CountingInputStream( InputStream in ) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b= super.read();
+            if ( b>-1 ) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n= super.read(b, off, len);
+            if ( n>0 ) count+= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long k= super.skip(n);
+            count+= k;
+            return k;
+        }
+    }
+
+}
@@ -0,0 +1,426 @@
+package org.hapiserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * keeps the result of each check of each server in one journal file,
+ * ROOT/results.journal, in place of a JSON file for each.  Results are
+ * appended to the journal, and an index in memory gives the position of the
+ * latest result for each (server,check), along with its status, message
+ * and time stamp, so the logs are only read when they are needed.
+ *
+ * The TTL of each result (see CheckStatus.getTtlMillis) follows its log in
+ * the record, and is 0 for records written before TTLs were kept.
+ *
+ * Each record has its length and a CRC32 of its contents in front of it,
+ * and is forced to disk before the index is updated.  When the journal is
+ * opened it is read from the start to rebuild the index, and a record
+ * which was only partly written when the process died is cut off.
+ *
+ * Results are invalidated by appending a record naming the server or check,
+ * so no directories are walked.  Once the space taken by replaced and
+ * invalidated results is more than the space of the current results, the
+ * current results are copied into a new journal which replaces the old one.
+ * @author jbf
+ */
+public class ResultStore {
+
+    private static final Logger logger= Logger.getLogger("HapiVerifier");
+
+    private static final Charset UTF8= Charset.forName("UTF-8");
+
+    private static final byte[] MAGIC= "HAPIRS01".getBytes(UTF8);
+
+    private static final byte PUT= 1;
+    private static final byte INVALIDATE= 2;
+
+    /**
+     * the journal is not compacted until this many bytes can be recovered.
+     */
+    private static final long COMPACT_MIN_BYTES= 1000000;
+
+    private static final ConcurrentHashMap<File,ResultStore> instances= new ConcurrentHashMap<>();
+
+    /**
+     * the position and summary of the latest result for a (server,check).
+     */
+    private static class IndexEntry {
+        long offset;
+        int length;
+        int status;
+        long timeStamp;
+        String message;
+        long ttlMillis;
+    }
+
+    private final File file;
+    private FileChannel channel;
+    private long size;
+    private long liveBytes;
+
+    /**
+     * server, then check, to the latest result.
+     */
+    private final Map<String,Map<String,IndexEntry>> index= new LinkedHashMap<>();
+
+    /**
+     * the version of each server's results, see getVersion.
+     */
+    private final Map<String,Long> versions= new HashMap<>();
+    private long version= 0;
+
+    private ResultStore( File file ) throws IOException {
+        this.file= file;
+        open();
+    }
+
+    /**
+     * return the store for the root, opening it if it is not already open.
+     * @param root the root of the testing area.
+     * @return the store
+     * @throws IOException
+     */
+    public static ResultStore open( File root ) throws IOException {
+        File f= new File( root, "results.journal" ).getCanonicalFile();
+        ResultStore result= instances.get(f);
+        if ( result==null ) {
+            synchronized ( instances ) {
+                result= instances.get(f);
+                if ( result==null ) {
+                    if ( !root.exists() && !root.mkdirs() ) {
+                        throw new IOException("unable to mkdir "+root);
+                    }
+                    result= new ResultStore(f);
+                    instances.put( f, result );
+                }
+            }
+        }
+        return result;
+    }
+
+    private void open() throws IOException {
+        channel= FileChannel.open( file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE );
+        if ( channel.size()==0 ) {
+            channel.write( ByteBuffer.wrap(MAGIC), 0 );
+            channel.force(true);
+        }
+        ByteBuffer magic= ByteBuffer.allocate(MAGIC.length);
+        channel.read( magic, 0 );
+        if ( magic.position()!=MAGIC.length || !ByteBuffer.wrap(MAGIC).equals( (ByteBuffer)magic.flip() ) ) {
+            throw new IOException("not a result journal: "+file);
+        }
+        index.clear();
+        liveBytes= 0;
+        long offset= MAGIC.length;
+        long end= channel.size();
+        ByteBuffer header= ByteBuffer.allocate(8);
+        while ( offset<end ) {
+            header.clear();
+            channel.read( header, offset );
+            if ( header.position()<8 ) break;
+            int length= header.getInt(0);
+            int crc= header.getInt(4);
+            if ( length<1 || offset+8+length>end ) break;
+            ByteBuffer payload= ByteBuffer.allocate(length);
+            channel.read( payload, offset+8 );
+            if ( payload.position()<length || crc!=crc(payload.array()) ) break;
+            payload.flip();
+            apply( payload, offset, 8+length );
+            offset+= 8+length;
+        }
+        if ( offset<end ) {
+            logger.log(Level.WARNING, "cutting off {0} bytes of incomplete records at the end of {1}", new Object[] { end-offset, file } );
+            channel.truncate(offset);
+            channel.force(true);
+        }
+        size= offset;
+    }
+
+    private static int crc( byte[] bytes ) {
+        CRC32 crc= new CRC32();
+        crc.update(bytes);
+        return (int)crc.getValue();
+    }
+
+    private static String getString( ByteBuffer buf ) {
+        int n= buf.getInt();
+        String s= new String( buf.array(), buf.position(), n, UTF8 );
+        buf.position( buf.position()+n );
+        return s;
+    }
+
+    private static void putString( ByteBuffer buf, byte[] bytes ) {
+        buf.putInt( bytes.length );
+        buf.put( bytes );
+    }
+
+    /**
+     * update the index with the record.
+     */
+    private void apply( ByteBuffer payload, long offset, int length ) {
+        byte type= payload.get();
+        String server= getString(payload);
+        String check= getString(payload);
+        switch ( type ) {
+            case PUT: {
+                IndexEntry e= new IndexEntry();
+                e.offset= offset;
+                e.length= length;
+                e.status= payload.getInt();
+                e.timeStamp= payload.getLong();
+                e.message= getString(payload);
+                payload.position( payload.position() + 4 + payload.getInt( payload.position() ) );
+                e.ttlMillis= payload.remaining()>=8 ? payload.getLong() : 0;
+                Map<String,IndexEntry> checks= index.get(server);
+                if ( checks==null ) {
+                    checks= new LinkedHashMap<>();
+                    index.put( server, checks );
+                }
+                versions.put( server, ++version );
+                IndexEntry old= checks.put( check, e );
+                if ( old!=null ) liveBytes-= old.length;
+                liveBytes+= length;
+                break;
+            }
+            case INVALIDATE:
+                remove( server.length()==0 ? null : server, check.length()==0 ? null : check );
+                break;
+            default:
+                logger.log(Level.WARNING, "unknown record type {0} in {1}", new Object[] { type, file } );
+        }
+    }
+
+    /**
+     * remove entries from the index.
+     * @return the number removed
+     */
+    private int remove( String server, String check ) {
+        int count= 0;
+        Iterator<Entry<String,Map<String,IndexEntry>>> servers= index.entrySet().iterator();
+        while ( servers.hasNext() ) {
+            Entry<String,Map<String,IndexEntry>> s= servers.next();
+            if ( server!=null && !server.equals(s.getKey()) ) continue;
+            versions.put( s.getKey(), ++version );
+            Iterator<Entry<String,IndexEntry>> checks= s.getValue().entrySet().iterator();
+            while ( checks.hasNext() ) {
+                Entry<String,IndexEntry> c= checks.next();
+                if ( check!=null && !check.equals(c.getKey()) ) continue;
+                liveBytes-= c.getValue().length;
+                checks.remove();
+                count++;
+            }
+            if ( s.getValue().isEmpty() ) servers.remove();
+        }
+        return count;
+    }
+
+    /**
+     * append the record and force it to disk.
+     * @return the offset of the record.
+     */
+    private long append( byte[] payload ) throws IOException {
+        ByteBuffer buf= ByteBuffer.allocate( 8+payload.length );
+        buf.putInt( payload.length );
+        buf.putInt( crc(payload) );
+        buf.put( payload );
+        buf.flip();
+        long offset= size;
+        while ( buf.hasRemaining() ) {
+            channel.write( buf, offset+buf.position() );
+        }
+        channel.force(false);
+        size+= 8+payload.length;
+        return offset;
+    }
+
+    /**
+     * keep the result of the check.
+     * @param server the server folder name, see HapiVerifier.serverFolderName
+     * @param check the check name
+     * @param status the result, with its log, time stamp and TTL.
+     * @throws IOException
+     */
+    public synchronized void put( String server, String check, CheckStatus status ) throws IOException {
+        byte[] bserver= server.getBytes(UTF8);
+        byte[] bcheck= check.getBytes(UTF8);
+        byte[] bmessage= String.valueOf( status.getMessage() ).getBytes(UTF8);
+        byte[] blog= String.valueOf( status.getLog() ).getBytes(UTF8);
+        ByteBuffer payload= ByteBuffer.allocate( 1 + 4+bserver.length + 4+bcheck.length + 4 + 8 + 4+bmessage.length + 4+blog.length + 8 );
+        payload.put( PUT );
+        putString( payload, bserver );
+        putString( payload, bcheck );
+        payload.putInt( status.getStatus() );
+        payload.putLong( status.getTimeStamp() );
+        putString( payload, bmessage );
+        putString( payload, blog );
+        payload.putLong( status.getTtlMillis() );
+        long offset= append( payload.array() );
+        payload.flip();
+        apply( payload, offset, 8+payload.limit() );
+        compactIfNeeded();
+    }
+
+    /**
+     * return the result of the check, with its log, or null if there is none.
+     * @param server the server folder name, see HapiVerifier.serverFolderName
+     * @param check the check name
+     * @return null or the result
+     * @throws IOException
+     */
+    public synchronized CheckStatus get( String server, String check ) throws IOException {
+        IndexEntry e= getEntry( server, check );
+        if ( e==null ) return null;
+        ByteBuffer record= ByteBuffer.allocate( e.length );
+        while ( record.hasRemaining() ) {
+            if ( channel.read( record, e.offset+record.position() )==-1 ) {
+                throw new IOException("result for "+server+" "+check+" is beyond the end of "+file);
+            }
+        }
+        byte[] payload= new byte[e.length-8];
+        System.arraycopy( record.array(), 8, payload, 0, payload.length );
+        if ( record.getInt(4)!=crc(payload) ) {
+            throw new IOException("result for "+server+" "+check+" is corrupt in "+file);
+        }
+        ByteBuffer buf= ByteBuffer.wrap(payload);
+        buf.get();
+        getString(buf);
+        getString(buf);
+        CheckStatus result= new CheckStatus( buf.getInt() );
+        result.setTimeStamp( buf.getLong() );
+        result.setMessage( getString(buf) );
+        result.setLog( getString(buf) );
+        if ( buf.remaining()>=8 ) result.setTtlMillis( buf.getLong() );
+        return result;
+    }
+
+    /**
+     * return the result of the check without its log, or null if there is
+     * none.  This does not read the journal.
+     * @param server the server folder name, see HapiVerifier.serverFolderName
+     * @param check the check name
+     * @return null or the result, with an empty log.
+     */
+    public synchronized CheckStatus getSummary( String server, String check ) {
+        IndexEntry e= getEntry( server, check );
+        if ( e==null ) return null;
+        CheckStatus result= new CheckStatus( e.status, e.message );
+        result.setTimeStamp( e.timeStamp );
+        result.setTtlMillis( e.ttlMillis );
+        return result;
+    }
+
+    private IndexEntry getEntry( String server, String check ) {
+        Map<String,IndexEntry> checks= index.get(server);
+        return checks==null ? null : checks.get(check);
+    }
+
+    /**
+     * return a number which changes whenever a result of the server is 
+     * added or invalidated, so things made from the results can be kept 
+     * until it changes.
+     * @param server the server folder name, see HapiVerifier.serverFolderName
+     * @return the version, which is 0 when there have been no results.
+     */
+    public synchronized long getVersion( String server ) {
+        Long v= versions.get(server);
+        return v==null ? 0 : v;
+    }
+
+    /**
+     * return the checks with results for the server.
+     * @param server the server folder name, see HapiVerifier.serverFolderName
+     * @return the check names
+     */
+    public synchronized List<String> getChecks( String server ) {
+        Map<String,IndexEntry> checks= index.get(server);
+        return checks==null ? new ArrayList<String>() : new ArrayList<>( checks.keySet() );
+    }
+
+    /**
+     * forget results, for one server when server is non-null, and for one
+     * check when check is non-null, so both null forgets all results.
+     * @param server null or the server folder name
+     * @param check null or the check name
+     * @throws IOException
+     */
+    public synchronized void invalidate( String server, String check ) throws IOException {
+        if ( remove( server, check )==0 ) return;
+        byte[] bserver= ( server==null ? "" : server ).getBytes(UTF8);
+        byte[] bcheck= ( check==null ? "" : check ).getBytes(UTF8);
+        ByteBuffer payload= ByteBuffer.allocate( 1 + 4+bserver.length + 4+bcheck.length );
+        payload.put( INVALIDATE );
+        putString( payload, bserver );
+        putString( payload, bcheck );
+        append( payload.array() );
+        compactIfNeeded();
+    }
+
+    private void compactIfNeeded() throws IOException {
+        long garbage= size - MAGIC.length - liveBytes;
+        if ( garbage>COMPACT_MIN_BYTES && garbage>liveBytes ) {
+            compact();
+        }
+    }
+
+    /**
+     * copy the current results into a new journal, which then replaces the
+     * old one.  A crash or an error while compacting leaves the old journal
+     * as it was, and the store is left open on whichever journal is in place.
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        long t0= System.currentTimeMillis();
+        long oldSize= size;
+        File tmp= new File( file.getPath()+".tmp" );
+        boolean moved= false;
+        try {
+            try ( FileChannel out= FileChannel.open( tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ) ) {
+                out.write( ByteBuffer.wrap(MAGIC) );
+                for ( Map<String,IndexEntry> checks: index.values() ) {
+                    for ( IndexEntry e: checks.values() ) {
+                        long n= 0;
+                        while ( n<e.length ) {
+                            long k= channel.transferTo( e.offset+n, e.length-n, out );
+                            if ( k<=0 ) {
+                                throw new IOException("result at "+e.offset+" is beyond the end of "+file);
+                            }
+                            n+= k;
+                        }
+                    }
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            moved= true;
+        } finally {
+            if ( !moved ) {
+                Files.deleteIfExists( tmp.toPath() );
+            }
+            if ( !channel.isOpen() ) {
+                open();
+            }
+        }
+        logger.log(Level.INFO, "compacted {0} from {1} to {2} bytes in {3} ms",
+                new Object[] { file, oldSize, size, System.currentTimeMillis()-t0 } );
+    }
+
+}
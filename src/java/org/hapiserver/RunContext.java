@@ -0,0 +1,109 @@
+package org.hapiserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * the root and settings of one run of the checks, which are read from
+ * ROOT/config.properties when the run starts and passed down to the checks,
+ * so that runs on different roots, or started with different settings, may
+ * go at once in one process.  See HapiVerifier.doChecks.
+ * @author jbf
+ */
+public class RunContext {
+
+    private final File root;
+    private final Properties config;
+    private final int datasetThreads;
+    private final int fetchCacheSize;
+    private final HttpCache httpCache;
+    private final long serverTimeoutMillis;
+    private final long checkTimeoutMillis;
+    private final long datasetTimeoutMillis;
+
+    /**
+     * create the context for a run on the root, reading its configuration.
+     * @param root the root of the testing area.
+     * @throws IOException
+     */
+    public RunContext( File root ) throws IOException {
+        this( root, HapiVerifier.getConfig(root) );
+    }
+
+    /**
+     * create the context for a run on the root.  JSON responses are kept
+     * in ROOT/httpcache, which is shared with the other runs on the root.
+     * @param root the root of the testing area.
+     * @param config the configuration, see HapiVerifier.getConfig.
+     * @throws IOException
+     */
+    public RunContext( File root, Properties config ) throws IOException {
+        this.root= root;
+        this.config= config;
+        this.datasetThreads= Math.max( 1, HapiVerifier.getConfigInt( config, "datasetThreads" ) );
+        this.fetchCacheSize= HapiVerifier.getConfigInt( config, "fetchCacheSize" );
+        int httpCacheMegabytes= HapiVerifier.getConfigInt( config, "httpCacheMegabytes" );
+        this.httpCache= httpCacheMegabytes>0 ? HttpCache.open( new File( root, "httpcache" ), httpCacheMegabytes*1000000L ) : null;
+        this.serverTimeoutMillis= HapiVerifier.getConfigInt( config, "serverTimeoutMinutes" ) * 60000L;
+        this.checkTimeoutMillis= HapiVerifier.getConfigInt( config, "checkTimeoutMinutes" ) * 60000L;
+        this.datasetTimeoutMillis= HapiVerifier.getConfigInt( config, "datasetTimeoutMinutes" ) * 60000L;
+    }
+
+    /**
+     * @return the root of the testing area.
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the configuration, see HapiVerifier.getConfig.
+     */
+    public Properties getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the number of datasets of one server, and of one host, checked at once.
+     */
+    public int getDatasetThreads() {
+        return datasetThreads;
+    }
+
+    /**
+     * @return the number of JSON responses kept while checking each server.
+     */
+    public int getFetchCacheSize() {
+        return fetchCacheSize;
+    }
+
+    /**
+     * @return null or the cache keeping JSON responses on disk between runs.
+     */
+    public HttpCache getHttpCache() {
+        return httpCache;
+    }
+
+    /**
+     * @return the time allowed for all the checks of a server, in milliseconds, or zero for no limit.
+     */
+    public long getServerTimeoutMillis() {
+        return serverTimeoutMillis;
+    }
+
+    /**
+     * @return the time allowed for each check, in milliseconds, or zero for no limit.
+     */
+    public long getCheckTimeoutMillis() {
+        return checkTimeoutMillis;
+    }
+
+    /**
+     * @return the time allowed for checking each dataset, in milliseconds, or zero for no limit.
+     */
+    public long getDatasetTimeoutMillis() {
+        return datasetTimeoutMillis;
+    }
+
+}
@@ -3,7 +3,6 @@ package org.hapiserver;
 
 import java.text.ParseException;
 import java.util.Arrays;
-import java.util.StringTokenizer;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -113,7 +112,7 @@ public class TimeUtil {
             }
         }
         if ( components[2]==0 ) { // handle borrow when it is no more than one day.
-            components[1]=- 1;
+            components[1]-= 1;
             if ( components[1]==0 ) {
                 components[1]= 12;
                 components[0]-= 1;
@@ -138,38 +137,45 @@ public class TimeUtil {
      * in the context of 2010-002T00:00/02:00.  This does not support 2-digit years, which
      * were removed in ISO 8601:2004.
      * 
+     * The characters are scanned in place, so nothing is allocated unless 
+     * the string cannot be parsed.  This accepts exactly what the original
+     * StringTokenizer parser accepted, with the delimiters "-T:.Z+", and 
+     * throws the same exceptions, which is checked by TimeUtilTest.
+     * 
      * @param str the ISO8601 string
      * @param result the datum, decomposed into [year,month,day,hour,minute,second,nano]
      * @param lsd -1 or the current position 
      * @return the lsd least significant digit
      */
-    public static int parseISO8601Datum( String str, int[] result, int lsd ) {
-        StringTokenizer st= new StringTokenizer( str, "-T:.Z+", true );
-        Object dir= null;
-        final Object DIR_FORWARD = "f";
-        final Object DIR_REVERSE = "r";
+    public static int parseISO8601Datum( CharSequence str, int[] result, int lsd ) {
+        final int len= str.length();
+        final int DIR_NONE= 0;
+        final int DIR_FORWARD= 1;
+        final int DIR_REVERSE= 2;
+        int dir= DIR_NONE;
         int want= 0;
         boolean haveDelim= false;
         boolean afterT= false;
-        while ( st.hasMoreTokens() ) {
+        int p= 0;
+        while ( p<len ) {
             char delim= ' ';
             if ( haveDelim ) {
-                delim= st.nextToken().charAt(0);
+                delim= str.charAt(p);
+                p= tokenEnd( str, p, len );
                 if ( delim=='T' ) afterT= true;
                 if ( afterT && ( delim=='-' || delim=='+' ) ) { // Time offset
-                    StringBuilder toff= new StringBuilder( String.valueOf(delim) );
-                    while ( st.hasMoreElements() ) {
-                        toff.append(st.nextToken());
-                    }
-                    int deltaHours= Integer.parseInt(toff.substring(0,3));
-                    switch ( toff.length() ) {
+                    int toff= p-1;
+                    int toffLength= len-toff;
+                    if ( toffLength<3 ) throw new StringIndexOutOfBoundsException(3);
+                    int deltaHours= parseInt( str, toff, toff+3 );
+                    switch ( toffLength ) {
                         case 6: 
                             result[3]-= deltaHours;
-                            result[4]-= Math.signum(deltaHours) * Integer.parseInt(toff.substring(4) );
+                            result[4]-= Math.signum(deltaHours) * parseInt( str, toff+4, len );
                             break;
                         case 5: 
                             result[3]-= deltaHours;
-                            result[4]-= Math.signum(deltaHours) * Integer.parseInt(toff.substring(3) );
+                            result[4]-= Math.signum(deltaHours) * parseInt( str, toff+3, len );
                             break;
                         case 3:
                             result[3]-= deltaHours;
@@ -180,18 +186,20 @@ public class TimeUtil {
                     normalizeTimeComponents(result);
                     break;
                 }
-                if ( st.hasMoreElements()==false ) { // "Z"
+                if ( p==len ) { // "Z"
                     break;
                 }
             } else {
                 haveDelim= true;
             }
-            String tok= st.nextToken();
-            if ( dir==null ) {
-                switch (tok.length()) {
+            int t0= p;
+            p= tokenEnd( str, p, len );
+            int tokLength= p-t0;
+            if ( dir==DIR_NONE ) {
+                switch (tokLength) {
                     case 4:
                         // typical route
-                        int iyear= Integer.parseInt( tok );
+                        int iyear= parseInt( str, t0, p );
                         result[0]= iyear;
                         want= 1;
                         dir=DIR_FORWARD;
@@ -199,68 +207,66 @@ public class TimeUtil {
                     case 6:
                         want= lsd;
                         if ( want!=6 ) throw new IllegalArgumentException("lsd must be 6");
-                        result[want]= Integer.parseInt( tok.substring(0,2) );
+                        result[want]= parseInt( str, t0, t0+2 );
                         want--;
-                        result[want]= Integer.parseInt( tok.substring(2,4) );
+                        result[want]= parseInt( str, t0+2, t0+4 );
                         want--;
-                        result[want]= Integer.parseInt( tok.substring(4,6) );
+                        result[want]= parseInt( str, t0+4, t0+6 );
                         want--;
                         dir=DIR_REVERSE;
                         break;
                     case 7:
-                        result[0]= Integer.parseInt( tok.substring(0,4) );
+                        result[0]= parseInt( str, t0, t0+4 );
                         result[1]= 1;
-                        result[2]= Integer.parseInt( tok.substring(4,7) );
+                        result[2]= parseInt( str, t0+4, t0+7 );
                         want= 3;
                         dir=DIR_FORWARD;
                         break;
                     case 8:
-                        result[0]= Integer.parseInt( tok.substring(0,4) );
-                        result[1]= Integer.parseInt( tok.substring(4,6) );
-                        result[2]= Integer.parseInt( tok.substring(6,8) );
+                        result[0]= parseInt( str, t0, t0+4 );
+                        result[1]= parseInt( str, t0+4, t0+6 );
+                        result[2]= parseInt( str, t0+6, t0+8 );
                         want= 3;
                         dir=DIR_FORWARD;
                         break;
                     default:
                         dir= DIR_REVERSE;
                         want= lsd;  // we are going to have to reverse these when we're done.
-                        int i= Integer.parseInt( tok );
+                        int i= parseInt( str, t0, p );
                         result[want]= i;
                         want--;
                         break;
                 }
             } else if ( dir==DIR_FORWARD) {
-                if ( want==1 && tok.length()==3 ) { // $j
+                if ( want==1 && tokLength==3 ) { // $j
                     result[1]= 1;
-                    result[2]= Integer.parseInt( tok ); 
+                    result[2]= parseInt( str, t0, p ); 
                     want= 3;
-                } else if ( want==3 && tok.length()==6 ) {
-                    result[want]= Integer.parseInt( tok.substring(0,2) );
+                } else if ( want==3 && tokLength==6 ) {
+                    result[want]= parseInt( str, t0, t0+2 );
                     want++;
-                    result[want]= Integer.parseInt( tok.substring(2,4) );
+                    result[want]= parseInt( str, t0+2, t0+4 );
                     want++;
-                    result[want]= Integer.parseInt( tok.substring(4,6) );
+                    result[want]= parseInt( str, t0+4, t0+6 );
                     want++;
-                } else if ( want==3 && tok.length()==4 ) {
-                    result[want]= Integer.parseInt( tok.substring(0,2) );
+                } else if ( want==3 && tokLength==4 ) {
+                    result[want]= parseInt( str, t0, t0+2 );
                     want++;
-                    result[want]= Integer.parseInt( tok.substring(2,4) );
+                    result[want]= parseInt( str, t0+2, t0+4 );
                     want++;
                 } else {
-                    int i= Integer.parseInt( tok );
+                    int i= parseInt( str, t0, p );
                     if ( delim=='.' && want==6 ) {
-                        int n= 9-tok.length();
-                        result[want]= i * ((int)Math.pow(10,n));
+                        result[want]= i * pow10( 9-tokLength );
                     } else {
                         result[want]= i;
                     }
                     want++;
                 }
-            } else if ( dir==DIR_REVERSE ) { // what about 1200 in reverse?
-                int i= Integer.parseInt( tok ); 
+            } else { // DIR_REVERSE, what about 1200 in reverse?
+                int i= parseInt( str, t0, p ); 
                 if ( delim=='.' ) {
-                    int n= 9-tok.length();
-                    result[want]= i * ((int)Math.pow(10,n));
+                    result[want]= i * pow10( 9-tokLength );
                 } else {
                     result[want]= i;
                 }
@@ -285,6 +291,121 @@ public class TimeUtil {
         return lsd;
     }
 
+    /**
+     * parse the ISO8601 time in bytes[start:end], as parseISO8601Datum does
+     * for a string, without making a string.  Each byte is one character,
+     * so the time should be ASCII.
+     * @param bytes the bytes, for example a field of a data record.
+     * @param start the index of the first byte
+     * @param end the index after the last byte
+     * @param result the datum, decomposed into [year,month,day,hour,minute,second,nano]
+     * @param lsd -1 or the current position 
+     * @return the lsd least significant digit
+     * @see #parseISO8601Datum(java.lang.CharSequence, int[], int) 
+     */
+    public static int parseISO8601Datum( byte[] bytes, int start, int end, int[] result, int lsd ) {
+        return parseISO8601Datum( new ByteChars( bytes, start, end ), result, lsd );
+    }
+    
+    /**
+     * a view of a range of bytes as characters, one character per byte.
+     */
+    private static final class ByteChars implements CharSequence {
+        private final byte[] bytes;
+        private final int start;
+        private final int end;
+        ByteChars( byte[] bytes, int start, int end ) {
+            if ( start<0 || end>bytes.length || start>end ) throw new IndexOutOfBoundsException();
+            this.bytes= bytes;
+            this.start= start;
+            this.end= end;
+        }
+        @Override
+        public int length() {
+            return end-start;
+        }
+        @Override
+        public char charAt( int index ) {
+            return (char)( bytes[start+index] & 0xFF );
+        }
+        @Override
+        public CharSequence subSequence( int s, int e ) {
+            return new ByteChars( bytes, start+s, start+e );
+        }
+        @Override
+        public String toString() {
+            StringBuilder b= new StringBuilder(end-start);
+            for ( int i=start; i<end; i++ ) b.append( (char)( bytes[i] & 0xFF ) );
+            return b.toString();
+        }
+    }
+    
+    /**
+     * return true if the character is one of the delimiters "-T:.Z+".
+     */
+    private static boolean isDelimiter( char c ) {
+        return c=='-' || c=='T' || c==':' || c=='.' || c=='Z' || c=='+';
+    }
+    
+    /**
+     * return the end of the token starting at p, which is either one
+     * delimiter or a run of other characters, as StringTokenizer would
+     * return them.
+     */
+    private static int tokenEnd( CharSequence str, int p, int len ) {
+        if ( isDelimiter( str.charAt(p) ) ) return p+1;
+        while ( p<len && !isDelimiter( str.charAt(p) ) ) p++;
+        return p;
+    }
+    
+    /**
+     * return 10**n as (int)Math.pow(10,n) would, which is zero for negative n.
+     */
+    private static int pow10( int n ) {
+        if ( n<0 ) return 0;
+        int result= 1;
+        for ( int i=0; i<n; i++ ) result*= 10;
+        return result;
+    }
+    
+    /**
+     * parse the characters from start to end as Integer.parseInt would, 
+     * without making a substring.
+     * @throws NumberFormatException like Integer.parseInt
+     */
+    private static int parseInt( CharSequence s, int start, int end ) {
+        if ( start>=end ) throw new NumberFormatException("For input string: \"\"");
+        int i= start;
+        boolean negative= false;
+        int limit= -Integer.MAX_VALUE;
+        char first= s.charAt(i);
+        if ( first<'0' ) {
+            if ( first=='-' ) {
+                negative= true;
+                limit= Integer.MIN_VALUE;
+            } else if ( first!='+' ) {
+                throw new NumberFormatException("For input string: \""+s.subSequence(start,end)+"\"");
+            }
+            if ( end-start==1 ) throw new NumberFormatException("For input string: \""+s.subSequence(start,end)+"\"");
+            i++;
+        }
+        int multmin= limit / 10;
+        int result= 0;
+        while ( i<end ) {
+            int digit= Character.digit( s.charAt(i++), 10 );
+            if ( digit<0 || result<multmin ) {
+                throw new NumberFormatException("For input string: \""+s.subSequence(start,end)+"\"");
+            }
+            result*= 10;
+            if ( result<limit+digit ) {
+                throw new NumberFormatException("For input string: \""+s.subSequence(start,end)+"\"");
+            }
+            result-= digit;
+        }
+        return negative ? result : -result;
+    }
+    
+
     
     /**
      * returns the time found in an ISO8601 string.  This supports
@@ -391,6 +512,146 @@ public class TimeUtil {
         }
     }
     
+    private static final long NANOS_PER_SECOND= 1000000000L;
+    private static final long NANOS_PER_DAY= 86400 * NANOS_PER_SECOND;
+    
+    /**
+     * return the number of nanoseconds since 1970-01-01T00:00Z, ignoring
+     * leap seconds.  A long holds the times from 1677 to 2262.  The
+     * components need not be normalized, so for example hour 25 is 
+     * one o'clock the next day, and month 0 is December of the year before.
+     * This does not allocate, so times can be kept and compared as longs.
+     * @param year the year
+     * @param month the month, 1 is January
+     * @param day the day of month, 1 is the first day
+     * @param hour the hour
+     * @param minute the minute
+     * @param second the second
+     * @param nanos the nanoseconds
+     * @return the time in nanoseconds since 1970-01-01T00:00Z.
+     */
+    public static long toEpochNanos( int year, int month, int day, int hour, int minute, int second, int nanos ) {
+        long y= year + floorDiv( month-1, 12 );
+        int m= (int)( month-1 - floorDiv( month-1, 12 )*12 ) + 1;
+        long days= daysSinceEpoch( y, m ) + day - 1;
+        return days * NANOS_PER_DAY + ( ( hour*60L + minute )*60L + second ) * NANOS_PER_SECOND + nanos;
+    }
+    
+    /**
+     * return the number of nanoseconds since 1970-01-01T00:00Z, ignoring leap seconds.
+     * @param components seven-element time [ Y,m,d,H,M,S,nanos ], which need not be normalized.
+     * @return the time in nanoseconds since 1970-01-01T00:00Z.
+     * @see #toEpochNanos(int, int, int, int, int, int, int) 
+     */
+    public static long toEpochNanos( int[] components ) {
+        return toEpochNanos( components[0], components[1], components[2], components[3], components[4], components[5], components[6] );
+    }
+    
+    /**
+     * decompose the time into normalized components.
+     * @param nanos the time in nanoseconds since 1970-01-01T00:00Z.
+     * @param result seven-element array, which is filled with [ Y,m,d,H,M,S,nanos ]
+     * @return the same array
+     */
+    public static int[] fromEpochNanos( long nanos, int[] result ) {
+        long days= floorDiv( nanos, NANOS_PER_DAY );
+        long nanosOfDay= nanos - days * NANOS_PER_DAY;
+        long ymd= civilFromDays( days );
+        result[0]= (int)( ymd / 10000 );
+        result[1]= (int)( ymd / 100 % 100 );
+        result[2]= (int)( ymd % 100 );
+        long seconds= nanosOfDay / NANOS_PER_SECOND;
+        result[3]= (int)( seconds / 3600 );
+        result[4]= (int)( seconds / 60 % 60 );
+        result[5]= (int)( seconds % 60 );
+        result[6]= (int)( nanosOfDay % NANOS_PER_SECOND );
+        return result;
+    }
+    
+    /**
+     * add the duration to the time.  Years and months are added to the
+     * calendar date, keeping the time of day, and the day of month is
+     * limited to the length of the month, so 2016-01-31 plus P1M is 2016-02-29.
+     * The rest of the duration is added as elapsed time.
+     * @param nanos the time in nanoseconds since 1970-01-01T00:00Z.
+     * @param duration seven-element duration [ Y,m,d,H,M,S,nanos ], see parseISO8601Duration.
+     * @return the time in nanoseconds since 1970-01-01T00:00Z.
+     */
+    public static long addDuration( long nanos, int[] duration ) {
+        return addDuration( nanos, duration, 1 );
+    }
+    
+    /**
+     * subtract the duration from the time.  See addDuration.
+     * @param nanos the time in nanoseconds since 1970-01-01T00:00Z.
+     * @param duration seven-element duration [ Y,m,d,H,M,S,nanos ], see parseISO8601Duration.
+     * @return the time in nanoseconds since 1970-01-01T00:00Z.
+     */
+    public static long subtractDuration( long nanos, int[] duration ) {
+        return addDuration( nanos, duration, -1 );
+    }
+    
+    private static long addDuration( long nanos, int[] duration, int sign ) {
+        if ( duration[0]!=0 || duration[1]!=0 ) {
+            long days= floorDiv( nanos, NANOS_PER_DAY );
+            long nanosOfDay= nanos - days * NANOS_PER_DAY;
+            long ymd= civilFromDays( days );
+            long months= ( ymd / 10000 ) * 12 + ( ymd / 100 % 100 - 1 ) + sign * ( duration[0] * 12L + duration[1] );
+            int year= (int)floorDiv( months, 12 );
+            int month= (int)( months - year * 12L ) + 1;
+            int day= Math.min( (int)( ymd % 100 ), daysInMonth( month, year ) );
+            nanos= ( daysSinceEpoch( year, month ) + day - 1 ) * NANOS_PER_DAY + nanosOfDay;
+        }
+        long elapsed= ( ( duration[2]*24L + duration[3] )*60L + duration[4] )*60L + duration[5];
+        return nanos + sign * ( elapsed * NANOS_PER_SECOND + duration[6] );
+    }
+    
+    /**
+     * format the time, like formatISO8601Datum.
+     * @param nanos the time in nanoseconds since 1970-01-01T00:00Z.
+     * @return formatted time
+     */
+    public static String formatEpochNanos( long nanos ) {
+        return formatISO8601Datum( fromEpochNanos( nanos, new int[7] ) );
+    }
+    
+    private static long floorDiv( long x, long y ) {
+        long q= x / y;
+        if ( ( x % y != 0 ) && ( ( x ^ y ) < 0 ) ) q--;
+        return q;
+    }
+    
+    /**
+     * return the number of days from 1970-01-01 to the first day of the month.
+     * @param year the year
+     * @param month the month, 1 to 12
+     */
+    private static long daysSinceEpoch( long year, int month ) {
+        long y= month<=2 ? year-1 : year;
+        long era= floorDiv( y, 400 );
+        long yoe= y - era*400;
+        long doy= ( 153*( month>2 ? month-3 : month+9 ) + 2 )/5;
+        long doe= yoe*365 + yoe/4 - yoe/100 + doy;
+        return era*146097 + doe - 719468;
+    }
+    
+    /**
+     * return the date which is the number of days from 1970-01-01, packed as 
+     * year*10000 + month*100 + day so that nothing is allocated.
+     */
+    private static long civilFromDays( long days ) {
+        long z= days + 719468;
+        long era= floorDiv( z, 146097 );
+        long doe= z - era*146097;
+        long yoe= ( doe - doe/1460 + doe/36524 - doe/146096 ) / 365;
+        long doy= doe - ( 365*yoe + yoe/4 - yoe/100 );
+        long mp= ( 5*doy + 2 )/153;
+        long day= doy - ( 153*mp + 2 )/5 + 1;
+        long month= mp<10 ? mp+3 : mp-9;
+        long year= yoe + era*400 + ( month<=2 ? 1 : 0 );
+        return year*10000 + month*100 + day;
+    }
+    
     /**
      * for convenience, this formats the decomposed time.
      * @param result seven-element time [ Y,m,d,H,M,S,nanos ] 
@@ -472,5 +733,10 @@ public class TimeUtil {
         System.err.println( formatISO8601Range(dd) );
         dd= parseISO8601Range("2017-08-14T12:00Z/P0D");
         System.err.println( formatISO8601Range(dd) );
+        
+        System.err.println( toEpochNanos( parseISO8601("2000-01-01T00:00Z") ) + " should be 946684800000000000" );
+        System.err.println( formatEpochNanos( addDuration( toEpochNanos( parseISO8601("2016-01-31T12:00Z") ), parseISO8601Duration("P1M") ) ) + " should be 2016-02-29T12:00Z" );
+        System.err.println( formatEpochNanos( subtractDuration( toEpochNanos( parseISO8601("2017-01-01T00:00Z") ), parseISO8601Duration("PT1.5S") ) ) + " should be 2016-12-31T23:59:58.500000000Z" );
     }
+    
 }
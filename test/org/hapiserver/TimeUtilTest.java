@@ -0,0 +1,273 @@
+package org.hapiserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.StringTokenizer;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * check that TimeUtil.parseISO8601Datum, which scans the string in place,
+ * gives the same results as the original StringTokenizer parser, and that
+ * the byte range version and RecordValidator.parseTime agree with it.
+ * @author jbf
+ */
+public class TimeUtilTest {
+    
+    private static final String[] FORMS= { "2017-08-14T00:00Z", "2017-08-14T00:00:00.000Z", "2017-08-14T00:00:00.123456789Z",
+        "2017-08-14T00:00:00.1234567891Z", "2017-226T00:00Z", "2017-226", "20170814", "2017226", 
+        "20170814T1200", "20170814T120030", "2017-08-14T12:00-05:00", "2017-08-14T12:00+0530", 
+        "2017-08-14T12:00-05", "2017-08-14T12:00+1", "2017-08-14T23:30:00-01:00", "2017-08-01T00:00+01:00",
+        "02:00", "02:00Z", "120000", "00.5", "2017", "2017-", "2017-08-14T", "", "-", "x", 
+        "2017--08", "2017-08-14T00:00:00.Z", "\u0662\u0660\u0661\u0667-08-14", "99999999999", "2017-08-14T12:00:00-05:-3", "2017-08-14T12:00:00+" };
+    
+    private static final int[] LSDS= { -1, 0, 3, 4, 6 };
+    
+    private static final String ALPHABET= "0123456789-T:.Z+ ";
+    
+    /**
+     * the result of parsing, either the components and lsd or the kind of exception.
+     */
+    private static String parse( String s, int lsd, boolean original ) {
+        int[] r= new int[] { 2000, 1, 1, 0, 0, 0, 0 };
+        try {
+            int l= original ? parseISO8601DatumTokenizer( s, r, lsd ) : TimeUtil.parseISO8601Datum( s, r, lsd );
+            return l + " " + Arrays.toString(r);
+        } catch ( RuntimeException ex ) {
+            return ex.getClass().getName();
+        }
+    }
+    
+    private static String parseBytes( String s, int lsd ) {
+        byte[] bytes= ( "  " + s + " " ).getBytes( StandardCharsets.ISO_8859_1 );
+        int[] r= new int[] { 2000, 1, 1, 0, 0, 0, 0 };
+        try {
+            int l= TimeUtil.parseISO8601Datum( bytes, 2, bytes.length-1, r, lsd );
+            return l + " " + Arrays.toString(r);
+        } catch ( RuntimeException ex ) {
+            return ex.getClass().getName();
+        }
+    }
+    
+    private static String randomTime( Random random ) {
+        StringBuilder b= new StringBuilder();
+        int n= random.nextInt(25);
+        for ( int j=0; j<n; j++ ) {
+            b.append( ALPHABET.charAt( random.nextInt( random.nextBoolean() ? 10 : ALPHABET.length() ) ) );
+        }
+        return b.toString();
+    }
+    
+    @Test
+    public void testForms() {
+        for ( String s: FORMS ) {
+            for ( int lsd: LSDS ) {
+                assertEquals( "\""+s+"\" lsd="+lsd, parse( s, lsd, true ), parse( s, lsd, false ) );
+            }
+        }
+    }
+    
+    @Test
+    public void testRandom() {
+        Random random= new Random(0);
+        for ( int i=0; i<200000; i++ ) {
+            String s= randomTime( random );
+            int lsd= LSDS[random.nextInt(LSDS.length)];
+            assertEquals( "\""+s+"\" lsd="+lsd, parse( s, lsd, true ), parse( s, lsd, false ) );
+        }
+    }
+    
+    @Test
+    public void testBytes() {
+        for ( String s: FORMS ) {
+            if ( !StandardCharsets.ISO_8859_1.newEncoder().canEncode(s) ) continue;
+            for ( int lsd: LSDS ) {
+                assertEquals( "\""+s+"\" lsd="+lsd, parse( s, lsd, true ), parseBytes( s, lsd ) );
+            }
+        }
+        Random random= new Random(1);
+        for ( int i=0; i<200000; i++ ) {
+            String s= randomTime( random );
+            int lsd= LSDS[random.nextInt(LSDS.length)];
+            assertEquals( "\""+s+"\" lsd="+lsd, parse( s, lsd, true ), parseBytes( s, lsd ) );
+        }
+    }
+    
+    private static long parseTime( String s ) {
+        byte[] bytes= s.getBytes( StandardCharsets.US_ASCII );
+        return RecordValidator.parseTime( bytes, 0, bytes.length );
+    }
+    
+    @Test
+    public void testRecordTimes() {
+        String[] good= { "2017-08-14T00:00Z", "2017-08-14T00:00:00.000Z", "2017-08-14T00:00:00.123456789Z",
+            "2017-226T00:00Z", "2017-226", "2017", "2017-08-14", "2017-08-14T12", "2017-08-14T12:34:56", 
+            "2016-366T23:59Z", "2016-02-29T00:00Z", " 2017-08-14T00:00Z " };
+        for ( String s: good ) {
+            int[] r= new int[] { 0, 1, 1, 0, 0, 0, 0 };
+            parseISO8601DatumTokenizer( s.trim(), r, 0 );
+            assertEquals( s, TimeUtil.toEpochNanos(r), parseTime(s) );
+        }
+        assertEquals( parseTime("2017-08-14T00:00:00.123456789Z"), parseTime("2017-08-14T00:00:00.1234567891Z") );
+        assertEquals( parseTime("2016-12-31T23:59:59Z")+1000000000L, parseTime("2016-12-31T23:59:60Z") );
+        String[] bad= { "", "Z", "2017-", "2017-8-14", "2017-08-14T", "2017-08-14T00:00:00.Z", "20170814", "2017226",
+            "2017-08-14T12:00-05:00", "2017-08-14T12:00+01", "2017-13-01", "2017-02-29", "2017-366", "2017-000",
+            "2017-08-14T24:00", "2017-08-14T00:60", "2017-08-14T00:00:61", "2017-08-14 00:00", "x" };
+        for ( String s: bad ) {
+            assertEquals( s, RecordValidator.BAD_TIME, parseTime(s) );
+        }
+    }
+    
+    /**
+     * the original parser, using a StringTokenizer, which parseISO8601Datum
+     * replaced.
+     * 
+     * @param str the ISO8601 string
+     * @param result the datum, decomposed into [year,month,day,hour,minute,second,nano]
+     * @param lsd -1 or the current position 
+     * @return the lsd least significant digit
+     */
+    private static int parseISO8601DatumTokenizer( String str, int[] result, int lsd ) {
+        StringTokenizer st= new StringTokenizer( str, "-T:.Z+", true );
+        Object dir= null;
+        final Object DIR_FORWARD = "f";
+        final Object DIR_REVERSE = "r";
+        int want= 0;
+        boolean haveDelim= false;
+        boolean afterT= false;
+        while ( st.hasMoreTokens() ) {
+            char delim= ' ';
+            if ( haveDelim ) {
+                delim= st.nextToken().charAt(0);
+                if ( delim=='T' ) afterT= true;
+                if ( afterT && ( delim=='-' || delim=='+' ) ) { // Time offset
+                    StringBuilder toff= new StringBuilder( String.valueOf(delim) );
+                    while ( st.hasMoreElements() ) {
+                        toff.append(st.nextToken());
+                    }
+                    int deltaHours= Integer.parseInt(toff.substring(0,3));
+                    switch ( toff.length() ) {
+                        case 6: 
+                            result[3]-= deltaHours;
+                            result[4]-= Math.signum(deltaHours) * Integer.parseInt(toff.substring(4) );
+                            break;
+                        case 5: 
+                            result[3]-= deltaHours;
+                            result[4]-= Math.signum(deltaHours) * Integer.parseInt(toff.substring(3) );
+                            break;
+                        case 3:
+                            result[3]-= deltaHours;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("malformed time zone designator: "+str);
+                    }
+                    TimeUtil.normalizeTimeComponents(result);
+                    break;
+                }
+                if ( st.hasMoreElements()==false ) { // "Z"
+                    break;
+                }
+            } else {
+                haveDelim= true;
+            }
+            String tok= st.nextToken();
+            if ( dir==null ) {
+                switch (tok.length()) {
+                    case 4:
+                        // typical route
+                        int iyear= Integer.parseInt( tok );
+                        result[0]= iyear;
+                        want= 1;
+                        dir=DIR_FORWARD;
+                        break;
+                    case 6:
+                        want= lsd;
+                        if ( want!=6 ) throw new IllegalArgumentException("lsd must be 6");
+                        result[want]= Integer.parseInt( tok.substring(0,2) );
+                        want--;
+                        result[want]= Integer.parseInt( tok.substring(2,4) );
+                        want--;
+                        result[want]= Integer.parseInt( tok.substring(4,6) );
+                        want--;
+                        dir=DIR_REVERSE;
+                        break;
+                    case 7:
+                        result[0]= Integer.parseInt( tok.substring(0,4) );
+                        result[1]= 1;
+                        result[2]= Integer.parseInt( tok.substring(4,7) );
+                        want= 3;
+                        dir=DIR_FORWARD;
+                        break;
+                    case 8:
+                        result[0]= Integer.parseInt( tok.substring(0,4) );
+                        result[1]= Integer.parseInt( tok.substring(4,6) );
+                        result[2]= Integer.parseInt( tok.substring(6,8) );
+                        want= 3;
+                        dir=DIR_FORWARD;
+                        break;
+                    default:
+                        dir= DIR_REVERSE;
+                        want= lsd;  // we are going to have to reverse these when we're done.
+                        int i= Integer.parseInt( tok );
+                        result[want]= i;
+                        want--;
+                        break;
+                }
+            } else if ( dir==DIR_FORWARD) {
+                if ( want==1 && tok.length()==3 ) { // $j
+                    result[1]= 1;
+                    result[2]= Integer.parseInt( tok ); 
+                    want= 3;
+                } else if ( want==3 && tok.length()==6 ) {
+                    result[want]= Integer.parseInt( tok.substring(0,2) );
+                    want++;
+                    result[want]= Integer.parseInt( tok.substring(2,4) );
+                    want++;
+                    result[want]= Integer.parseInt( tok.substring(4,6) );
+                    want++;
+                } else if ( want==3 && tok.length()==4 ) {
+                    result[want]= Integer.parseInt( tok.substring(0,2) );
+                    want++;
+                    result[want]= Integer.parseInt( tok.substring(2,4) );
+                    want++;
+                } else {
+                    int i= Integer.parseInt( tok );
+                    if ( delim=='.' && want==6 ) {
+                        int n= 9-tok.length();
+                        result[want]= i * ((int)Math.pow(10,n));
+                    } else {
+                        result[want]= i;
+                    }
+                    want++;
+                }
+            } else if ( dir==DIR_REVERSE ) { // what about 1200 in reverse?
+                int i= Integer.parseInt( tok ); 
+                if ( delim=='.' ) {
+                    int n= 9-tok.length();
+                    result[want]= i * ((int)Math.pow(10,n));
+                } else {
+                    result[want]= i;
+                }
+                want--;
+            }
+        }
+        
+        if ( dir==DIR_REVERSE ) {
+            int iu= want+1;
+            int id= lsd;
+            while( iu<id ) {
+                int t= result[iu];
+                result[iu]= result[id];
+                result[id]= t;
+                iu= iu+1;
+                id= id-1;
+            }
+        } else {
+            lsd= want-1;
+        }
+        
+        return lsd;
+    }
+
+}
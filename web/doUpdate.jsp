@@ -5,7 +5,7 @@
 --%>
 
 <%@page import="java.io.File"%>
-<%@page import="org.hapiserver.HapiVerifier"%>
+<%@page import="org.hapiserver.JobScheduler"%>
 <%@page contentType="text/html" pageEncoding="UTF-8"%>
 <!DOCTYPE html>
 <html>
@@ -17,17 +17,11 @@
         <h1>Updating tests</h1>
         Wait a minute or so, and then click <a href="index.html">here</a>.
         <%
-            Runnable run= new Runnable() {
-                public void run() {
-                    String p= getServletContext().getRealPath("");
-                    try {
-                        HapiVerifier.doAllServers( new File( p ) );
-                    } catch ( Exception ex ) {
-                        ex.printStackTrace();
-                    }
-                }
-            };
-            new Thread(run).start();
+            String p= getServletContext().getInitParameter("HAPI_VERIFIER_HOME");
+            if ( p==null ) {
+                p= "/tmp/hapiserver/";
+            }
+            JobScheduler.submit( new File( p ), null, null );
             %>
     </body>
 </html>